@@ -1,21 +1,46 @@
 package freditor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 public class Autosaver {
     private static final Pattern APPLICATIONS = Pattern.compile("[a-z]{1,16}");
     private static final String EXTENSION = ".txt";
+    private static final String HISTORY_EXTENSION = ".pack";
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    private static final long DEBOUNCE_MILLIS = 500;
 
     private final Freditor freditor;
+    // a single thread, so writes never interleave
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "autosaver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // guarded by this
+    private CharZipper pending;
+    private final ByteArrayOutputStream pendingEdits = new ByteArrayOutputStream();
 
     public final String directory;
     public final String filename;
     public final String pathname;
+    // every distinct version ever saved
+    public final SnapshotStore history;
+    // the edits and undo operations leading to the saved text
+    public final EditJournal journal;
 
     public Autosaver(Freditor freditor, String application) {
         if (!APPLICATIONS.matcher(application).matches()) {
@@ -27,6 +52,8 @@ public class Autosaver {
         directory = System.getProperty("user.home") + File.separator + application + File.separator;
         filename = application + EXTENSION;
         pathname = directory + filename;
+        history = new SnapshotStore(directory + application + HISTORY_EXTENSION);
+        journal = new EditJournal(directory + application + JOURNAL_EXTENSION);
     }
 
     public void loadOrDefault(String program) {
@@ -35,42 +62,104 @@ public class Autosaver {
         } catch (IOException ignored) {
             freditor.loadFromString(program);
         }
+        try {
+            new File(directory).mkdir();
+            freditor.recordEditsIn(journal, journal.resume(freditor.toByteArray()));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 
+    /**
+     * Saves the current text and waits until it has been written.
+     */
     public void save() {
-        createDirectory();
-        saveAs(pathname);
-        saveAs(contentHashPathname());
+        Future<?> written;
+        synchronized (this) {
+            takeSnapshot();
+            written = executor.submit(this::writePending);
+        }
+        try {
+            written.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Saves the current text shortly on a background thread and returns immediately.
+     * A burst of calls results in a single save of the latest text.
+     */
+    public synchronized void saveInBackground() {
+        if (pending == null) {
+            executor.schedule(this::writePending, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        takeSnapshot();
     }
 
-    private void createDirectory() {
-        File dir = new File(directory);
-        if (dir.mkdir()) {
-            System.out.println("created directory " + dir);
+    // Must be called on the editing thread, so the journaled edits lead exactly to the snapshot
+    private void takeSnapshot() {
+        pending = freditor.snapshot();
+        byte[] edits = journal.takeRecords();
+        pendingEdits.write(edits, 0, edits.length);
+    }
+
+    private void writePending() {
+        CharZipper snapshot;
+        byte[] edits;
+        synchronized (this) {
+            if (pending == null) return;
+
+            snapshot = pending;
+            pending = null;
+            edits = pendingEdits.toByteArray();
+            pendingEdits.reset();
         }
+        write(snapshot, edits);
     }
 
-    private void saveAs(String pathname) {
+    // only accessed from the autosaver thread
+    private String lastContentHash;
+
+    private void write(CharZipper snapshot, byte[] edits) {
+        new File(directory).mkdir();
         try {
-            System.out.println("saving code as " + pathname);
-            freditor.saveToFile(pathname);
+            snapshot.saveToFile(pathname);
+            MessageDigest sha1 = sha1();
+            CRC32 crc = new CRC32();
+            hashChunks(snapshot, sha1, crc);
+            String contentHash = Base64.getUrlEncoder().withoutPadding().encodeToString(sha1.digest());
+            // an unchanged text is not stored again
+            if (!contentHash.equals(lastContentHash)) {
+                history.put(contentHash, snapshot);
+                lastContentHash = contentHash;
+            }
+            journal.append(edits, snapshot.length(), (int) crc.getValue());
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
-    private String contentHashPathname() {
+    private static final int HASHING_CHUNK_SIZE = 1 << 16;
+
+    private static void hashChunks(CharZipper snapshot, MessageDigest sha1, CRC32 crc) {
+        final int len = snapshot.length();
+        byte[] chunk = new byte[Math.min(len, HASHING_CHUNK_SIZE)];
+        for (int i = 0; i < len; i += chunk.length) {
+            final int stop = Math.min(len, i + chunk.length);
+            snapshot.copyIntoArray(i, stop, chunk, 0);
+            sha1.update(chunk, 0, stop - i);
+            crc.update(chunk, 0, stop - i);
+        }
+    }
+
+    private static MessageDigest sha1() {
         try {
-            byte[] text = freditor.toByteArray();
-            byte[] hash = MessageDigest.getInstance("SHA-1").digest(text);
-            String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
-            // File names starting with a minus sign require special care.
-            // A base64url-encoded SHA-1 hash never ends with a minus sign,
-            // so reversing the encoded string is an easy fix.
-            String reversed = new StringBuilder(encoded).reverse().toString();
-            return directory + reversed + EXTENSION;
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException sha1unsupported) {
             throw new RuntimeException(sha1unsupported);
         }
     }
-}
\ No newline at end of file
+}
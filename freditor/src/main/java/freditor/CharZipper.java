@@ -1,13 +1,44 @@
 package freditor;
 
 import freditor.persistent.ByteVector;
+import freditor.persistent.TransientByteVector;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import static freditor.persistent.Reversal.pushReversed;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class CharZipper implements CharSequence {
     private ByteVector before = ByteVector.EMPTY;
     private ByteVector after = ByteVector.EMPTY;
 
+    public CharZipper() {
+    }
+
+    private CharZipper(ByteVector before, ByteVector after) {
+        this.before = before;
+        this.after = after;
+    }
+
+    // The bytes are taken as they are, without converting line separators
+    static CharZipper of(byte[] bytes) {
+        return new CharZipper(ByteVector.of(bytes), ByteVector.EMPTY);
+    }
+
+    /**
+     * Returns an independent copy of the text in O(1),
+     * because both halves of the zipper are persistent.
+     */
+    public CharZipper snapshot() {
+        return new CharZipper(before, after);
+    }
+
     protected class Memento {
         private final ByteVector before = CharZipper.this.before;
         private final ByteVector after = CharZipper.this.after;
@@ -16,6 +47,99 @@ public class CharZipper implements CharSequence {
             CharZipper.this.before = before;
             CharZipper.this.after = after;
         }
+
+        /**
+         * Estimates the heap bytes retained by this memento but not by the newer one.
+         */
+        protected long bytesNotSharedWith(Memento newer) {
+            return before.bytesNotSharedWith(newer.before) + after.bytesNotSharedWith(newer.after);
+        }
+    }
+
+    /**
+     * Reads consecutive characters of the text as of its creation,
+     * descending into either half of the zipper only once per leaf.
+     */
+    public static final class LeafCursor implements CharSequence {
+        private final ByteVector.Cursor before;
+        private final ByteVector.Cursor after;
+        private final int lenBefore;
+        private final int lastAfter;
+
+        private LeafCursor(ByteVector before, ByteVector after) {
+            this.before = before.cursor();
+            this.after = after.cursor();
+            lenBefore = before.size();
+            lastAfter = lenBefore + after.size() - 1;
+        }
+
+        @Override
+        public int length() {
+            return lastAfter + 1;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < lenBefore) return (char) (before.byteAt(index) & 255);
+            return (char) (after.byteAt(lastAfter - index) & 255);
+        }
+
+        @Override
+        public String subSequence(int start, int end) {
+            final int len = end - start;
+            char[] temp = new char[len];
+            for (int i = 0; i < len; ++i) {
+                temp[i] = charAt(start + i);
+            }
+            return new String(temp);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length());
+        }
+    }
+
+    public LeafCursor leafCursor() {
+        return new LeafCursor(before, after);
+    }
+
+    /**
+     * Returns the length of the longest common prefix of both texts.
+     * The halves before both foci are compared without descending into shared subtrees,
+     * so only the characters between the two foci are compared one by one.
+     */
+    public int commonPrefixLength(CharZipper other) {
+        int prefix = before.commonPrefixLength(other.before);
+        if (prefix < Math.min(before.size(), other.before.size())) return prefix;
+
+        final int limit = Math.min(length(), other.length());
+        LeafCursor these = leafCursor();
+        LeafCursor those = other.leafCursor();
+        while (prefix < limit && these.charAt(prefix) == those.charAt(prefix)) {
+            ++prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * Returns the length of the longest common suffix of both texts, but at most max.
+     * The halves after both foci are compared without descending into shared subtrees,
+     * so only the characters between the two foci are compared one by one.
+     */
+    public int commonSuffixLength(CharZipper other, int max) {
+        int suffix = Math.min(after.commonPrefixLength(other.after), max);
+        if (suffix < Math.min(Math.min(after.size(), other.after.size()), max)) return suffix;
+
+        final int limit = Math.min(Math.min(length(), other.length()), max);
+        LeafCursor these = leafCursor();
+        LeafCursor those = other.leafCursor();
+        final int lastThese = length() - 1;
+        final int lastThose = other.length() - 1;
+        while (suffix < limit && these.charAt(lastThese - suffix) == those.charAt(lastThose - suffix)) {
+            ++suffix;
+        }
+        return suffix;
     }
 
     protected ByteVector before() {
@@ -42,12 +166,9 @@ public class CharZipper implements CharSequence {
 
     @Override
     public String subSequence(int start, int end) {
-        final int len = end - start;
-        char[] temp = new char[len];
-        for (int i = 0; i < len; ++i) {
-            temp[i] = charAt(start + i);
-        }
-        return new String(temp);
+        byte[] temp = new byte[end - start];
+        copyIntoArray(start, end, temp, 0);
+        return new String(temp, StandardCharsets.ISO_8859_1);
     }
 
     public byte[] toByteArray() {
@@ -58,11 +179,7 @@ public class CharZipper implements CharSequence {
 
         if (lenBefore < lenAfter) {
             after.copyIntoArray(temp, lenBefore);
-            for (int i = lenBefore, k = temp.length - 1; i < k; ++i, --k) {
-                byte x = temp[i];
-                temp[i] = temp[k];
-                temp[k] = x;
-            }
+            reverse(temp, lenBefore, len);
         } else {
             after.copyIntoArray(temp, 0);
             for (int i = lenAfter - 1, k = lenBefore; i >= 0; --i, ++k) {
@@ -73,11 +190,110 @@ public class CharZipper implements CharSequence {
         return temp;
     }
 
+    /**
+     * Copies the characters from start (inclusive) to end (exclusive),
+     * one leaf at a time.
+     */
+    public void copyIntoArray(int start, int end, byte[] bytes, int offset) {
+        final int lenBefore = before.size();
+        if (start < lenBefore) {
+            final int stop = Math.min(end, lenBefore);
+            before.copyIntoArray(start, stop, bytes, offset);
+            offset += stop - start;
+            start = stop;
+        }
+        if (start < end) {
+            final int lenAfter = after.size();
+            final int from = lenAfter - (end - lenBefore);
+            final int to = lenAfter - (start - lenBefore);
+            after.copyIntoArray(from, to, bytes, offset);
+            reverse(bytes, offset, offset + to - from);
+        }
+    }
+
+    private static void reverse(byte[] bytes, int start, int end) {
+        for (int i = start, k = end - 1; i < k; ++i, --k) {
+            byte x = bytes[i];
+            bytes[i] = bytes[k];
+            bytes[k] = x;
+        }
+    }
+
     @Override
     public String toString() {
         return new String(toByteArray(), StandardCharsets.ISO_8859_1);
     }
 
+    // PERSISTENCE
+
+    public void saveToFile(String pathname) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pathname), WRITE, CREATE, TRUNCATE_EXISTING)) {
+            byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+            if (lineSeparator.length == 1 && lineSeparator[0] == '\n') {
+                writeLeaves(channel, before());
+                writeChunks(channel, before().size(), length(), null);
+            } else {
+                writeChunks(channel, 0, length(), lineSeparator);
+            }
+        }
+    }
+
+    private static final int LEAVES_PER_WRITE = 1024;
+
+    // Gathers the leaves of the text into as few writes as possible, without copying them
+    private static void writeLeaves(FileChannel channel, ByteVector text) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[LEAVES_PER_WRITE];
+        final int len = text.size();
+        for (int i = 0; i < len; ) {
+            int n = 0;
+            long remaining = 0;
+            for (; n < buffers.length && i < len; ++n) {
+                ByteBuffer leaf = text.leafBuffer(i, len);
+                buffers[n] = leaf;
+                i += leaf.remaining();
+                remaining += leaf.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers, 0, n);
+            }
+        }
+    }
+
+    private static final int SAVING_CHUNK_SIZE = 1 << 16;
+
+    // Writes the text from start to end one chunk at a time, translating line separators unless null
+    private void writeChunks(FileChannel channel, int start, int end, byte[] lineSeparator) throws IOException {
+        byte[] chunk = new byte[Math.min(end - start, SAVING_CHUNK_SIZE)];
+        byte[] translated = lineSeparator == null ? chunk : new byte[chunk.length * lineSeparator.length];
+        for (int i = start; i < end; i += chunk.length) {
+            final int stop = Math.min(end, i + chunk.length);
+            copyIntoArray(i, stop, chunk, 0);
+            int len = stop - i;
+            if (lineSeparator != null) {
+                len = translateLineSeparators(chunk, len, lineSeparator, translated);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(translated, 0, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static int translateLineSeparators(byte[] chunk, int len, byte[] lineSeparator, byte[] translated) {
+        int k = 0;
+        for (int i = 0; i < len; ++i) {
+            byte b = chunk[i];
+            if (b == '\n') {
+                for (byte s : lineSeparator) {
+                    translated[k++] = s;
+                }
+            } else {
+                translated[k++] = b;
+            }
+        }
+        return k;
+    }
+
     // TEXT MANIPULATION
 
     public void clear() {
@@ -86,6 +302,20 @@ public class CharZipper implements CharSequence {
     }
 
     protected void focusOn(int index) {
+        int delta = index - before.size();
+        if (delta < -32) {
+            after = pushReversed(after, before, index);
+            before = before.take(index);
+        } else if (delta > 32) {
+            final int remaining = after.size() - delta;
+            before = pushReversed(before, after, remaining);
+            after = after.take(remaining);
+        } else {
+            focusOnByteByByte(index);
+        }
+    }
+
+    void focusOnByteByByte(int index) {
         int delta = index - before.size();
         for (; delta < 0; ++delta) {
             byte x = before.top();
@@ -110,29 +340,40 @@ public class CharZipper implements CharSequence {
     }
 
     protected void insertBeforeFocus(byte[] bytes) {
+        TransientByteVector before = this.before.asTransient();
         final int len = bytes.length;
+        int start = 0;
         for (int i = 0; i < len; ) {
             byte b = bytes[i++];
-            if (b != '\r') {
-                before = before.push(b);
-            } else if (i == len || bytes[i] != '\n') {
-                // convert Mac OS Classic "\r" to Unix "\n"
-                before = before.push((byte) '\n');
+            if (b == '\r') {
+                before.pushAll(bytes, start, i - 1 - start);
+                if (i == len || bytes[i] != '\n') {
+                    // convert Mac OS Classic "\r" to Unix "\n"
+                    before.push((byte) '\n');
+                }
+                start = i;
             }
         }
+        before.pushAll(bytes, start, len - start);
+        this.before = before.persistent();
     }
 
     protected void insertBeforeFocus(CharSequence s) {
         final int len = s.length();
+        byte[] bytes = new byte[len];
         for (int i = 0; i < len; ++i) {
-            before = before.push((byte) s.charAt(i));
+            bytes[i] = (byte) s.charAt(i);
         }
+        // a pasted text becomes a vector of its own, which is joined to the text in O(log n)
+        before = before.concat(ByteVector.of(bytes));
     }
 
     protected void insertAfterFocus(CharSequence s) {
+        TransientByteVector after = this.after.asTransient();
         for (int i = s.length() - 1; i >= 0; --i) {
-            after = after.push((byte) s.charAt(i));
+            after.push((byte) s.charAt(i));
         }
+        this.after = after.persistent();
     }
 
     public byte deleteLeftOf(int index) {
@@ -149,6 +390,15 @@ public class CharZipper implements CharSequence {
         return deleted;
     }
 
+    /**
+     * Exchanges the text from a to b with the text from c to d, where b <= c,
+     * by slicing and concatenating both halves in O(log n) instead of copying the text in between.
+     */
+    public void swapRanges(int a, int b, int c, int d) {
+        focusOn(d);
+        before = before.take(a).concat(before.slice(c, d)).concat(before.slice(b, c)).concat(before.slice(a, b));
+    }
+
     public String deleteRange(int start, int end) {
         focusOn(end);
         String result = beforeSlice(start, end);
@@ -157,12 +407,9 @@ public class CharZipper implements CharSequence {
     }
 
     private String beforeSlice(int start, int end) {
-        final int len = end - start;
-        char[] temp = new char[len];
-        for (int i = 0; i < len; ++i) {
-            temp[i] = charAt(before, start + i);
-        }
-        return new String(temp);
+        byte[] temp = new byte[end - start];
+        before.copyIntoArray(start, end, temp, 0);
+        return new String(temp, StandardCharsets.ISO_8859_1);
     }
 
     private static char charAt(ByteVector v, int index) {
@@ -0,0 +1,197 @@
+package freditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only binary journal of the edits and undo operations of a Freditor,
+ * from which its undo history can be rebuilt after a restart.
+ * <p>
+ * Edits are recorded in memory on the editing thread; takeRecords hands them over
+ * together with a snapshot of the text, and append writes both on a background thread.
+ * Every append ends with a checkpoint (length and CRC-32 of the text),
+ * so a journal whose last checkpoint matches the loaded text can be resumed.
+ */
+public final class EditJournal {
+    static final byte LOAD = 'L';
+    static final byte CLEAR = 'X';
+    static final byte INSERT = 'I';
+    static final byte DELETE = 'D';
+    static final byte SWAP = 'S';
+    static final byte COMMIT = 'C';
+    static final byte UNDO = 'U';
+    static final byte REDO = 'R';
+    static final byte UNCOMMIT = 'N';
+    static final byte DISCARD = 'P';
+    static final byte CHECKPOINT = 'K';
+
+    private static final int CHECKPOINT_SIZE = 9;
+    // larger journals are restarted instead of resumed, which bounds the replay time
+    private static final long MAX_RESUMED_SIZE = 16 << 20;
+
+    public final String pathname;
+
+    // only accessed from the editing thread
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    // guarded by this
+    private FileChannel channel;
+    // the part of the file written by earlier sessions
+    private long resumedSize;
+
+    public EditJournal(String pathname) {
+        this.pathname = pathname;
+    }
+
+    /**
+     * Opens the journal for the given text, which has just been loaded.
+     * Returns true if the journal ends with that text and its history can be replayed,
+     * otherwise starts a new journal with the text as its base.
+     */
+    public synchronized boolean resume(byte[] text) throws IOException {
+        channel = FileChannel.open(Paths.get(pathname), READ, WRITE, CREATE);
+        final long size = channel.size();
+        if (size >= CHECKPOINT_SIZE && size <= MAX_RESUMED_SIZE) {
+            ByteBuffer last = read(size - CHECKPOINT_SIZE, CHECKPOINT_SIZE);
+            if (last.get() == CHECKPOINT && last.getInt() == text.length && last.getInt() == crc(text)) {
+                resumedSize = size;
+                return true;
+            }
+        }
+        channel.truncate(0);
+        resumedSize = 0;
+        ByteArrayOutputStream base = new ByteArrayOutputStream(text.length + 16);
+        DataOutputStream out = new DataOutputStream(base);
+        out.writeByte(LOAD);
+        out.writeInt(text.length);
+        out.write(text);
+        writeCheckpoint(out, text.length, crc(text));
+        write(base.toByteArray());
+        return false;
+    }
+
+    /**
+     * Returns the records written by earlier sessions, ending with the text passed to resume.
+     */
+    synchronized ByteBuffer history() throws IOException {
+        return read(0, (int) resumedSize);
+    }
+
+    // RECORDING
+
+    void load(byte[] bytes) {
+        buffer.write(LOAD);
+        writeInt(bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    void insert(int index, CharSequence s) {
+        final int len = s.length();
+        buffer.write(INSERT);
+        writeInt(index);
+        writeInt(len);
+        for (int i = 0; i < len; ++i) {
+            buffer.write(s.charAt(i));
+        }
+    }
+
+    void delete(int start, int end) {
+        buffer.write(DELETE);
+        writeInt(start);
+        writeInt(end);
+    }
+
+    void swap(int a, int b, int c, int d) {
+        buffer.write(SWAP);
+        writeInt(a);
+        writeInt(b);
+        writeInt(c);
+        writeInt(d);
+    }
+
+    void commit(int origin, int cursor, int desiredColumn) {
+        buffer.write(COMMIT);
+        writeInt(origin);
+        writeInt(cursor);
+        writeInt(desiredColumn);
+    }
+
+    // CLEAR, UNDO, REDO, UNCOMMIT or DISCARD
+    void record(byte operation) {
+        buffer.write(operation);
+    }
+
+    private void writeInt(int x) {
+        buffer.write(x >>> 24);
+        buffer.write(x >>> 16);
+        buffer.write(x >>> 8);
+        buffer.write(x);
+    }
+
+    /**
+     * Returns the records since the last call and forgets them.
+     * Must be called on the editing thread.
+     */
+    public byte[] takeRecords() {
+        byte[] result = buffer.toByteArray();
+        buffer.reset();
+        return result;
+    }
+
+    // WRITING
+
+    /**
+     * Appends records taken earlier, followed by a checkpoint of the text they lead to,
+     * given by its length and CRC-32.
+     * Does nothing unless the journal has been resumed and there are records.
+     */
+    public synchronized void append(byte[] records, int textLength, int textCrc) throws IOException {
+        if (channel == null || records.length == 0) return;
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream(records.length + CHECKPOINT_SIZE);
+        DataOutputStream out = new DataOutputStream(tail);
+        out.write(records);
+        writeCheckpoint(out, textLength, textCrc);
+        write(tail.toByteArray());
+    }
+
+    private static void writeCheckpoint(DataOutputStream out, int textLength, int textCrc) throws IOException {
+        out.writeByte(CHECKPOINT);
+        out.writeInt(textLength);
+        out.writeInt(textCrc);
+    }
+
+    private static int crc(byte[] text) {
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        return (int) crc.getValue();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(pathname + " is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -1,7 +1,10 @@
 package freditor;
 
+import freditor.ephemeral.IntStack;
 import freditor.persistent.ChampMap;
 
+import java.util.ArrayList;
+
 import static freditor.FlexerState.EMPTY;
 import static freditor.FlexerState.THIS;
 
@@ -49,4 +52,110 @@ public abstract class Flexer {
         }
         return nextState;
     }
+
+    // STATE IDS
+
+    private volatile FlexerState[] states;
+    private ChampMap<FlexerState, Integer> ids;
+    // states x 256 Latin-1 characters, with the fallback to start() already folded in
+    private int[] transitions;
+    private byte[] nestingDeltas;
+
+    /**
+     * Numbers all states reachable from END densely, with END itself being 0,
+     * and compiles the transitions between them into a flat table.
+     * Subclasses initialize their start state after this constructor has run,
+     * so both are computed on first use.
+     */
+    private FlexerState[] states() {
+        FlexerState[] states = this.states;
+        if (states == null) {
+            synchronized (this) {
+                states = this.states;
+                if (states == null) {
+                    this.states = states = internReachableStates();
+                }
+            }
+        }
+        return states;
+    }
+
+    private FlexerState[] internReachableStates() {
+        ArrayList<FlexerState> states = new ArrayList<>();
+        ChampMap<FlexerState, Integer> ids = ChampMap.of(END, 0);
+        IntStack transitions = new IntStack();
+        states.add(END);
+        for (int id = 0; id < states.size(); ++id) {
+            FlexerState state = states.get(id);
+            for (char c = 0; c < 256; ++c) {
+                FlexerState next = nextState(state, c);
+                Integer nextId = ids.get(next);
+                if (nextId == null) {
+                    nextId = states.size();
+                    ids = ids.put(next, nextId);
+                    states.add(next);
+                }
+                transitions.push(nextId);
+            }
+        }
+        if (states.size() > 65536) throw new IllegalStateException(states.size() + " states exceed 16-bit ids");
+
+        this.ids = ids;
+        this.transitions = transitions.toArray();
+        this.nestingDeltas = new byte[states.size()];
+        for (int id = 0; id < states.size(); ++id) {
+            nestingDeltas[id] = (byte) (int) nestingDelta.getOrDefault(states.get(id), 0);
+        }
+        return states.toArray(new FlexerState[0]);
+    }
+
+    public final int numberOfStates() {
+        return states().length;
+    }
+
+    public final FlexerState stateOf(int id) {
+        return states()[id];
+    }
+
+    public final int idOf(FlexerState state) {
+        states();
+        return ids.get(state);
+    }
+
+    public final int nextStateId(int currentId, char input) {
+        states();
+        return transitions[currentId << 8 | input & 255];
+    }
+
+    public final byte nestingDeltaOf(int id) {
+        states();
+        return nestingDeltas[id];
+    }
+
+    /**
+     * Lexes input[start..end) beginning with the given state id,
+     * stores the resulting state ids and returns the last one.
+     */
+    public final int nextStateIds(int id, byte[] input, int start, int end, short[] ids, int offset) {
+        states();
+        final int[] transitions = this.transitions;
+        for (int i = start; i < end; ++i) {
+            id = transitions[id << 8 | input[i] & 255];
+            ids[offset++] = (short) id;
+        }
+        return id;
+    }
+
+    /**
+     * Lexes input[start..end) beginning with the given state id
+     * and returns the last state id, without storing the others.
+     */
+    public final int lastStateId(int id, byte[] input, int start, int end) {
+        states();
+        final int[] transitions = this.transitions;
+        for (int i = start; i < end; ++i) {
+            id = transitions[id << 8 | input[i] & 255];
+        }
+        return id;
+    }
 }
\ No newline at end of file
@@ -1,35 +1,63 @@
 package freditor;
 
-import freditor.ephemeral.GapBuffer;
 import freditor.ephemeral.IntStack;
 import freditor.persistent.ByteVector;
+import freditor.persistent.DeltaVector;
+import freditor.persistent.IntVector;
+import freditor.persistent.ShortVector;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import static freditor.Maths.atLeastZero;
+import static freditor.persistent.Reversal.pushReversed;
 
-public final class Freditor extends CharZipper {
-    private final IntStack lineBreaksBefore;
-    private final IntStack lineBreaksAfter;
+public final class Freditor extends CharZipper implements LexedText {
+    private IntVector lineBreaksBefore;
+    private IntVector lineBreaksAfter;
 
-    private final GapBuffer<FlexerState> flexerStates;
+    // indentation levels entering the row after each line break, parallel to the above;
+    // -1 for line breaks that did not exist during the last indentation
+    private IntVector levelsBefore;
+    private IntVector levelsAfter;
+    // rows from dirtyRowsFrom up to but excluding the last cleanRowsAtEnd were edited since
+    private int dirtyRowsFrom;
+    private int cleanRowsAtEnd;
+
+    // 16-bit state ids (see Flexer.idOf) parallel to before() and after(), respectively
+    private ShortVector flexerStatesBefore;
+    private ShortVector flexerStatesAfter;
+
+    // nesting deltas of the above states, for finding matching parens in O(log n)
+    private DeltaVector nestingBefore;
+    private DeltaVector nestingAfter;
 
     public final Flexer flexer;
     public final Indenter indenter;
 
     public Freditor(Flexer flexer, Indenter indenter) {
-        lineBreaksBefore = new IntStack();
-        lineBreaksAfter = new IntStack();
+        lineBreaksBefore = IntVector.EMPTY;
+        lineBreaksAfter = IntVector.EMPTY;
+
+        levelsBefore = IntVector.EMPTY;
+        levelsAfter = IntVector.EMPTY;
 
-        flexerStates = new GapBuffer<>();
+        flexerStatesBefore = ShortVector.EMPTY;
+        flexerStatesAfter = ShortVector.EMPTY;
+
+        nestingBefore = DeltaVector.EMPTY;
+        nestingAfter = DeltaVector.EMPTY;
 
         this.flexer = flexer;
         this.indenter = indenter;
@@ -44,6 +72,20 @@ public final class Freditor extends CharZipper {
         private final int cursor = Freditor.this.cursor;
         private final int desiredColumn = Freditor.this.desiredColumn;
 
+        private final IntVector lineBreaksBefore = Freditor.this.lineBreaksBefore;
+        private final IntVector lineBreaksAfter = Freditor.this.lineBreaksAfter;
+
+        private final IntVector levelsBefore = Freditor.this.levelsBefore;
+        private final IntVector levelsAfter = Freditor.this.levelsAfter;
+        private final int dirtyRowsFrom = Freditor.this.dirtyRowsFrom;
+        private final int cleanRowsAtEnd = Freditor.this.cleanRowsAtEnd;
+
+        private final ShortVector flexerStatesBefore = Freditor.this.flexerStatesBefore;
+        private final ShortVector flexerStatesAfter = Freditor.this.flexerStatesAfter;
+
+        private final DeltaVector nestingBefore = Freditor.this.nestingBefore;
+        private final DeltaVector nestingAfter = Freditor.this.nestingAfter;
+
         @Override
         public void restore() {
             super.restore();
@@ -52,13 +94,47 @@ public final class Freditor extends CharZipper {
             Freditor.this.cursor = cursor;
             Freditor.this.desiredColumn = desiredColumn;
 
-            refreshBookkeeping();
+            Freditor.this.lineBreaksBefore = lineBreaksBefore;
+            Freditor.this.lineBreaksAfter = lineBreaksAfter;
+
+            Freditor.this.levelsBefore = levelsBefore;
+            Freditor.this.levelsAfter = levelsAfter;
+            Freditor.this.dirtyRowsFrom = dirtyRowsFrom;
+            Freditor.this.cleanRowsAtEnd = cleanRowsAtEnd;
+
+            Freditor.this.flexerStatesBefore = flexerStatesBefore;
+            Freditor.this.flexerStatesAfter = flexerStatesAfter;
+
+            Freditor.this.nestingBefore = nestingBefore;
+            Freditor.this.nestingAfter = nestingAfter;
+
+            changeAllRows();
+        }
+
+        // by the time this memento is not the newest anymore
+        private long retainedBytes;
+
+        @Override
+        protected long bytesNotSharedWith(CharZipper.Memento memento) {
+            Memento newer = (Memento) memento;
+            return MEMENTO_OVERHEAD + super.bytesNotSharedWith(newer)
+                    + lineBreaksBefore.bytesNotSharedWith(newer.lineBreaksBefore)
+                    + lineBreaksAfter.bytesNotSharedWith(newer.lineBreaksAfter)
+                    + levelsBefore.bytesNotSharedWith(newer.levelsBefore)
+                    + levelsAfter.bytesNotSharedWith(newer.levelsAfter)
+                    + flexerStatesBefore.bytesNotSharedWith(newer.flexerStatesBefore)
+                    + flexerStatesAfter.bytesNotSharedWith(newer.flexerStatesAfter)
+                    + nestingBefore.bytesNotSharedWith(newer.nestingBefore)
+                    + nestingAfter.bytesNotSharedWith(newer.nestingAfter);
         }
     }
 
+    private static final int MEMENTO_OVERHEAD = 100;
+
     private void refreshBookkeeping() {
         refreshLineBreaks();
         refreshFlexerStates();
+        changeAllRows();
     }
 
     private void forgetDesiredColumn() {
@@ -88,18 +164,27 @@ public final class Freditor extends CharZipper {
     // LINE BREAKS
 
     private void refreshLineBreaks() {
-        refreshLineBreaks(before(), lineBreaksBefore);
-        refreshLineBreaks(after(), lineBreaksAfter);
+        lineBreaksBefore = lineBreaksOf(before());
+        lineBreaksAfter = lineBreaksOf(after());
+
+        levelsBefore = unknownLevels(lineBreaksBefore.size());
+        levelsAfter = unknownLevels(lineBreaksAfter.size());
+        dirtyRowsFrom = 0;
+        cleanRowsAtEnd = 0;
     }
 
-    private static void refreshLineBreaks(ByteVector text, IntStack lineBreaks) {
-        lineBreaks.clear();
-        final int len = text.size();
-        for (int i = 0; i < len; ++i) {
-            if (text.byteAt(i) == '\n') {
-                lineBreaks.push(i);
-            }
+    private static IntVector unknownLevels(int n) {
+        int[] levels = new int[n];
+        Arrays.fill(levels, -1);
+        return IntVector.of(levels);
+    }
+
+    private static IntVector lineBreaksOf(ByteVector text) {
+        IntStack lineBreaks = new IntStack();
+        for (int i = text.indexOf((byte) '\n', 0); i >= 0; i = text.indexOf((byte) '\n', i + 1)) {
+            lineBreaks.push(i);
         }
+        return IntVector.of(lineBreaks.toArray());
     }
 
     private int numberOfLineBreaks() {
@@ -153,28 +238,133 @@ public final class Freditor extends CharZipper {
     // FLEXER
 
     public FlexerState stateAt(int index) {
-        return (0 <= index) && (index < length()) ? flexerStates.get(index) : Flexer.END;
+        return flexer.stateOf(stateIdAt(index));
+    }
+
+    private int stateIdAt(int index) {
+        if (index < 0) return 0;
+        final int lenBefore = flexerStatesBefore.size();
+        if (index < lenBefore) return flexerStatesBefore.get(index) & 0xffff;
+        index -= lenBefore;
+        final int lenAfter = flexerStatesAfter.size();
+        if (index < lenAfter) return flexerStatesAfter.get(lenAfter - 1 - index) & 0xffff;
+        return 0;
+    }
+
+    private void setStateIdAt(int index, int id) {
+        final int lenBefore = flexerStatesBefore.size();
+        if (index < lenBefore) {
+            flexerStatesBefore = flexerStatesBefore.set(index, (short) id);
+            nestingBefore = nestingBefore.set(index, flexer.nestingDeltaOf(id));
+        } else {
+            final int mirror = length() - 1 - index;
+            flexerStatesAfter = flexerStatesAfter.set(mirror, (short) id);
+            nestingAfter = nestingAfter.set(mirror, flexer.nestingDeltaOf(id));
+        }
     }
 
     private void refreshFlexerStates() {
-        flexerStates.clear();
-        FlexerState state = flexer.start();
         final int len = length();
-        for (int i = 0; i < len; ++i) {
-            char x = charAt(i);
-            state = flexer.nextState(state, x);
-            flexerStates.add(state);
+        final int lenBefore = before().size();
+        short[] ids = lexRange(0, len);
+
+        short[] idsAfter = new short[len - lenBefore];
+        for (int i = 0, k = len - 1; i < idsAfter.length; ++i, --k) {
+            idsAfter[i] = ids[k];
         }
+        flexerStatesBefore = ShortVector.of(lenBefore == len ? ids : Arrays.copyOf(ids, lenBefore));
+        flexerStatesAfter = ShortVector.of(idsAfter);
+
+        byte[] deltas = nestingDeltasOf(ids, 0, lenBefore);
+        nestingBefore = DeltaVector.EMPTY.pushAll(deltas, 0, deltas.length);
+        deltas = nestingDeltasOf(idsAfter, 0, idsAfter.length);
+        nestingAfter = DeltaVector.EMPTY.pushAll(deltas, 0, deltas.length);
     }
 
-    private void fixFlexerStatesFrom(int index) {
-        FlexerState state = stateAt(index - 1);
-        final int len = length();
+    private byte[] nestingDeltasOf(short[] ids, int start, int end) {
+        byte[] deltas = new byte[end - start];
+        for (int i = start; i < end; ++i) {
+            deltas[i - start] = flexer.nestingDeltaOf(ids[i] & 0xffff);
+        }
+        return deltas;
+    }
+
+    private static final int LEXING_CHUNK_SIZE = 4096;
+    // lowered by tests to reach the parallel path with small texts
+    int parallelLexingThreshold = 1 << 20;
+
+    // Lexes text whose states have not been stored yet
+    private short[] lexRange(int start, int end) {
+        short[] ids = new short[end - start];
+        final int id = start == 0 ? 0 : stateIdAt(start - 1);
+        if (end - start < parallelLexingThreshold) {
+            lexChunk(id, start, end, ids, start);
+        } else {
+            lexInParallel(id, start, end, ids);
+        }
+        return ids;
+    }
+
+    private void lexChunk(int id, int start, int end, short[] ids, int origin) {
+        byte[] chunk = new byte[Math.min(end - start, LEXING_CHUNK_SIZE)];
+        for (int i = start; i < end; i += chunk.length) {
+            final int stop = Math.min(end, i + chunk.length);
+            copyIntoArray(i, stop, chunk, 0);
+            id = flexer.nextStateIds(id, chunk, 0, stop - i, ids, i - origin);
+        }
+    }
+
+    /**
+     * Lexes line-aligned chunks in parallel, each speculatively starting from END.
+     * The chunk boundaries are then repaired in order, until the actual states
+     * converge with the speculative ones, which usually happens within one line.
+     */
+    private void lexInParallel(int id, int start, int end, short[] ids) {
+        int[] boundaries = lineAlignedBoundaries(start, end, ForkJoinPool.getCommonPoolParallelism() * 4);
+        // compile the transition table before the workers race for it
+        flexer.numberOfStates();
+        IntStream.range(0, boundaries.length - 1).parallel().forEach(k ->
+                lexChunk(k == 0 ? id : 0, boundaries[k], boundaries[k + 1], ids, start));
+
+        final LeafCursor text = leafCursor();
+        for (int k = 1; k < boundaries.length - 1; ++k) {
+            int actual = ids[boundaries[k] - 1 - start] & 0xffff;
+            for (int i = boundaries[k]; i < end; ++i) {
+                actual = flexer.nextStateId(actual, text.charAt(i));
+                if ((ids[i - start] & 0xffff) == actual) break;
+
+                ids[i - start] = (short) actual;
+            }
+        }
+    }
+
+    private int[] lineAlignedBoundaries(int start, int end, int parts) {
+        final LeafCursor text = leafCursor();
+        IntStack boundaries = new IntStack(start);
+        for (int k = 1; k < parts; ++k) {
+            int i = Math.max(start + (int) ((long) (end - start) * k / parts), boundaries.top());
+            while (i < end && text.charAt(i) != '\n') ++i;
+            if (++i < end) {
+                boundaries.push(i);
+            }
+        }
+        boundaries.push(end);
+        return boundaries.toArray();
+    }
+
+    // Returns the index of the first state that needed no fixing
+    private int fixFlexerStatesFrom(int index) {
+        int id = stateIdAt(index - 1);
+        final LeafCursor text = leafCursor();
+        final int len = text.length();
         for (int i = index; i < len; ++i) {
-            char x = charAt(i);
-            state = flexer.nextState(state, x);
-            if (flexerStates.set(i, state) == state) return;
+            char x = text.charAt(i);
+            id = flexer.nextStateId(id, x);
+            if (stateIdAt(i) == id) return i;
+
+            setStateIdAt(i, id);
         }
+        return len;
     }
 
     public int startOfLexeme(int index) {
@@ -192,134 +382,309 @@ public final class Freditor extends CharZipper {
     }
 
     public void findOpeningParen(int start, IntConsumer onPresent, Runnable onMissing) {
+        int position = openingParen(start, cursor);
+        if (position >= 0) {
+            onPresent.accept(position);
+        } else {
+            onMissing.run();
+        }
+    }
+
+    // Finds the largest position in [start, end) where the nesting up to end rises above zero.
+    // The after side is stored in reverse, so searching backwards in the document searches forwards there.
+    private int openingParen(int start, int end) {
+        if (start >= end) return -1;
+
         int nesting = 0;
-        for (int i = cursor - 1; i >= start; --i) {
-            nesting += Flexer.nestingDelta.getOrDefault(stateAt(i), 0);
-            if (nesting > 0) {
-                onPresent.accept(i);
-                return;
-            }
+        final int lenBefore = nestingBefore.size();
+        if (end > lenBefore) {
+            final int len = length();
+            final int from = Math.max(start, lenBefore);
+            final int base = nestingAfter.prefixSum(len - end);
+            int n = nestingAfter.firstPrefixAbove(len - end + 1, len - from, base);
+            if (n >= 0) return len - n;
+
+            nesting = nestingAfter.prefixSum(len - from) - base;
+            end = from;
+        }
+        if (start < end) {
+            return nestingBefore.lastPrefixBelow(start, end - 1, nestingBefore.prefixSum(end) + nesting);
         }
-        onMissing.run();
+        return -1;
     }
 
     public static final Runnable doNothing = () -> {
     };
 
     public void findClosingParen(int end, IntConsumer onPresent, Runnable onMissing) {
+        int position = closingParen(cursor, end);
+        if (position >= 0) {
+            onPresent.accept(position);
+        } else {
+            onMissing.run();
+        }
+    }
+
+    // Finds the smallest position in [start, end) where the nesting from start drops below zero
+    private int closingParen(int start, int end) {
+        if (start >= end) return -1;
+
         int nesting = 0;
-        for (int i = cursor; i < end; ++i) {
-            nesting += Flexer.nestingDelta.getOrDefault(stateAt(i), 0);
-            if (nesting < 0) {
-                onPresent.accept(i);
-                return;
-            }
+        final int lenBefore = nestingBefore.size();
+        if (start < lenBefore) {
+            final int stop = Math.min(end, lenBefore);
+            final int base = nestingBefore.prefixSum(start);
+            int n = nestingBefore.firstPrefixBelow(start + 1, stop, base);
+            if (n >= 0) return n - 1;
+
+            nesting = nestingBefore.prefixSum(stop) - base;
+            start = stop;
+        }
+        if (start < end) {
+            final int len = length();
+            int n = nestingAfter.lastPrefixAbove(len - end, len - start - 1, nesting + nestingAfter.prefixSum(len - start));
+            if (n >= 0) return len - 1 - n;
         }
-        onMissing.run();
+        return -1;
     }
 
     // CHARZIPPER OVERRIDES
 
     @Override
     public void clear() {
-        lineBreaksBefore.clear();
-        lineBreaksAfter.clear();
+        lineBreaksBefore = IntVector.EMPTY;
+        lineBreaksAfter = IntVector.EMPTY;
+
+        levelsBefore = IntVector.EMPTY;
+        levelsAfter = IntVector.EMPTY;
+        dirtyRowsFrom = 0;
+        cleanRowsAtEnd = 0;
 
-        flexerStates.clear();
+        flexerStatesBefore = ShortVector.EMPTY;
+        flexerStatesAfter = ShortVector.EMPTY;
+
+        nestingBefore = DeltaVector.EMPTY;
+        nestingAfter = DeltaVector.EMPTY;
+        changeAllRows();
 
         super.clear();
+        if (journal != null) {
+            journal.record(EditJournal.CLEAR);
+        }
     }
 
     @Override
     protected void focusOn(int index) {
+        final int delta = index - before().size();
+        if (delta < 0) {
+            flexerStatesAfter = pushReversed(flexerStatesAfter, flexerStatesBefore, index);
+            flexerStatesBefore = flexerStatesBefore.take(index);
+            nestingAfter = pushNestingDeltas(nestingAfter, flexerStatesAfter, nestingAfter.size());
+            nestingBefore = nestingBefore.take(index);
+        } else if (delta > 0) {
+            final int remaining = flexerStatesAfter.size() - delta;
+            flexerStatesBefore = pushReversed(flexerStatesBefore, flexerStatesAfter, remaining);
+            flexerStatesAfter = flexerStatesAfter.take(remaining);
+            nestingBefore = pushNestingDeltas(nestingBefore, flexerStatesBefore, nestingBefore.size());
+            nestingAfter = nestingAfter.take(remaining);
+        }
         super.focusOn(index);
-        final int len = length();
-        mirrorLineBreaks(lineBreaksBefore, lineBreaksAfter, index, len - 1);
-        mirrorLineBreaks(lineBreaksAfter, lineBreaksBefore, len - index, len - 1);
+        final int mirror = length() - 1;
+        // the line breaks crossed by the focus are found by binary search and moved one leaf at a time
+        final int keptBefore = lineBreaksBefore.binarySearch(index);
+        if (keptBefore < lineBreaksBefore.size()) {
+            lineBreaksAfter = pushReversed(lineBreaksAfter, lineBreaksBefore, keptBefore, mirror);
+            lineBreaksBefore = lineBreaksBefore.take(keptBefore);
+            levelsAfter = pushReversed(levelsAfter, levelsBefore, keptBefore, -1);
+            levelsBefore = levelsBefore.take(keptBefore);
+        }
+        final int keptAfter = lineBreaksAfter.binarySearch(length() - index);
+        if (keptAfter < lineBreaksAfter.size()) {
+            lineBreaksBefore = pushReversed(lineBreaksBefore, lineBreaksAfter, keptAfter, mirror);
+            lineBreaksAfter = lineBreaksAfter.take(keptAfter);
+            levelsBefore = pushReversed(levelsBefore, levelsAfter, keptAfter, -1);
+            levelsAfter = levelsAfter.take(keptAfter);
+        }
     }
 
-    private void mirrorLineBreaks(IntStack src, IntStack dst, int threshold, int mirror) {
-        while (!src.isEmpty() && src.top() >= threshold) {
-            dst.push(mirror - src.pop());
+    // Pushes the nesting deltas of ids[start..] onto dst, one leaf at a time
+    private DeltaVector pushNestingDeltas(DeltaVector dst, ShortVector ids, int start) {
+        short[] run = new short[32];
+        for (int begin = start, size = ids.size(); begin < size; ) {
+            int end = Math.min(size, (begin | 31) + 1);
+            ids.copyIntoArray(begin, end, run, 0);
+            byte[] deltas = nestingDeltasOf(run, 0, end - begin);
+            dst = dst.pushAll(deltas, 0, deltas.length);
+            begin = end;
         }
+        return dst;
     }
 
     @Override
     public void insertAt(int index, char x) {
+        if (journal != null) {
+            journal.insert(index, String.valueOf(x));
+        }
         super.insertAt(index, x);
         if (x == '\n') {
-            lineBreaksBefore.push(index);
+            lineBreaksBefore = lineBreaksBefore.push(index);
+            levelsBefore = levelsBefore.push(-1);
         }
-        flexerStates.add(index, FlexerState.EMPTY);
-        fixFlexerStatesFrom(index);
+        final int id = flexer.nextStateId(stateIdAt(index - 1), x);
+        flexerStatesBefore = flexerStatesBefore.push((short) id);
+        nestingBefore = nestingBefore.push(flexer.nestingDeltaOf(id));
+        touchRows(index, fixFlexerStatesFrom(index + 1));
     }
 
     @Override
     public void insertAt(int index, CharSequence s) {
+        if (journal != null) {
+            journal.insert(index, s);
+        }
         super.insertAt(index, s);
         final ByteVector before = before();
         final int end = before.size();
-        for (int i = index; i < end; ++i) {
-            if (before.byteAt(i) == '\n') {
-                lineBreaksBefore.push(i);
-            }
-            flexerStates.add(i, FlexerState.EMPTY);
+        for (int i = before.indexOf((byte) '\n', index); i >= 0; i = before.indexOf((byte) '\n', i + 1)) {
+            lineBreaksBefore = lineBreaksBefore.push(i);
+            levelsBefore = levelsBefore.push(-1);
         }
-        fixFlexerStatesFrom(index);
+        short[] ids = lexRange(index, end);
+        flexerStatesBefore = flexerStatesBefore.pushAll(ids, 0, ids.length);
+        nestingBefore = nestingBefore.pushAll(nestingDeltasOf(ids, 0, ids.length), 0, ids.length);
+        touchRows(index, fixFlexerStatesFrom(end));
     }
 
     private void insertAt(int index, char x, CharSequence s) {
+        if (journal != null) {
+            journal.insert(index, x + s.toString());
+        }
         super.insertAt(index, x);
         if (x == '\n') {
-            lineBreaksBefore.push(index);
+            lineBreaksBefore = lineBreaksBefore.push(index);
+            levelsBefore = levelsBefore.push(-1);
         }
-        flexerStates.add(index, FlexerState.EMPTY);
+        final int id = flexer.nextStateId(stateIdAt(index - 1), x);
+        flexerStatesBefore = flexerStatesBefore.push((short) id);
+        nestingBefore = nestingBefore.push(flexer.nestingDeltaOf(id));
 
         final int start = after().size();
         insertAfterFocus(s);
         final ByteVector after = after();
         final int end = after.size();
-        for (int i = start; i < end; ++i) {
-            if (after.byteAt(i) == '\n') {
-                lineBreaksAfter.push(i);
-            }
-            flexerStates.add(index + 1, FlexerState.EMPTY);
+        for (int i = after.indexOf((byte) '\n', start); i >= 0; i = after.indexOf((byte) '\n', i + 1)) {
+            lineBreaksAfter = lineBreaksAfter.push(i);
+            levelsAfter = levelsAfter.push(-1);
         }
-        fixFlexerStatesFrom(index);
+        short[] ids = lexRange(index + 1, index + 1 + end - start);
+        for (int i = ids.length - 1; i >= 0; --i) {
+            flexerStatesAfter = flexerStatesAfter.push(ids[i]);
+            nestingAfter = nestingAfter.push(flexer.nestingDeltaOf(ids[i] & 0xffff));
+        }
+        touchRows(index, fixFlexerStatesFrom(index + 1 + ids.length));
     }
 
     @Override
     public byte deleteLeftOf(int index) {
+        if (journal != null) {
+            journal.delete(index - 1, index);
+        }
         byte deleted = super.deleteLeftOf(index);
         if (deleted == '\n') {
-            lineBreaksBefore.pop();
+            lineBreaksBefore = lineBreaksBefore.pop();
+            levelsBefore = levelsBefore.pop();
         }
-        flexerStates.remove(index - 1);
-        fixFlexerStatesFrom(index - 1);
+        flexerStatesBefore = flexerStatesBefore.pop();
+        nestingBefore = nestingBefore.pop();
+        touchRows(index - 1, fixFlexerStatesFrom(index - 1));
         return deleted;
     }
 
     @Override
     public byte deleteRightOf(int index) {
+        if (journal != null) {
+            journal.delete(index, index + 1);
+        }
         byte deleted = super.deleteRightOf(index);
         if (deleted == '\n') {
-            lineBreaksAfter.pop();
+            lineBreaksAfter = lineBreaksAfter.pop();
+            levelsAfter = levelsAfter.pop();
         }
-        flexerStates.remove(index);
-        fixFlexerStatesFrom(index);
+        flexerStatesAfter = flexerStatesAfter.pop();
+        nestingAfter = nestingAfter.pop();
+        touchRows(index, fixFlexerStatesFrom(index));
         return deleted;
     }
 
     @Override
     public String deleteRange(int start, int end) {
+        if (journal != null) {
+            journal.delete(start, end);
+        }
         String result = super.deleteRange(start, end);
         int firstObsoleteLineBreak = lineBreaksBefore.binarySearch(start);
-        lineBreaksBefore.shrinkToSize(firstObsoleteLineBreak);
-        flexerStates.remove(start, end);
-        fixFlexerStatesFrom(start);
+        lineBreaksBefore = lineBreaksBefore.take(firstObsoleteLineBreak);
+        levelsBefore = levelsBefore.take(firstObsoleteLineBreak);
+        flexerStatesBefore = flexerStatesBefore.take(start);
+        nestingBefore = nestingBefore.take(start);
+        touchRows(start, fixFlexerStatesFrom(start));
         return result;
     }
 
+    @Override
+    public void swapRanges(int a, int b, int c, int d) {
+        if (journal != null) {
+            journal.swap(a, b, c, d);
+        }
+        super.swapRanges(a, b, c, d);
+        // the text before the focus was rearranged from a on, so its line breaks and states are redone from there
+        int firstMovedLineBreak = lineBreaksBefore.binarySearch(a);
+        lineBreaksBefore = lineBreaksBefore.take(firstMovedLineBreak);
+        levelsBefore = levelsBefore.take(firstMovedLineBreak);
+        final ByteVector before = before();
+        for (int i = before.indexOf((byte) '\n', a); i >= 0; i = before.indexOf((byte) '\n', i + 1)) {
+            lineBreaksBefore = lineBreaksBefore.push(i);
+            levelsBefore = levelsBefore.push(-1);
+        }
+        flexerStatesBefore = flexerStatesBefore.take(a);
+        nestingBefore = nestingBefore.take(a);
+        short[] ids = lexRange(a, d);
+        flexerStatesBefore = flexerStatesBefore.pushAll(ids, 0, ids.length);
+        nestingBefore = nestingBefore.pushAll(nestingDeltasOf(ids, 0, ids.length), 0, ids.length);
+        touchRows(a, fixFlexerStatesFrom(d));
+    }
+
+    // Marks the rows from start to end as edited or relexed since the last indentation
+    private void touchRows(int start, int end) {
+        final int firstRow = rowOfPosition(start);
+        final int lastRow = rowOfPosition(end);
+        dirtyRowsFrom = Math.min(dirtyRowsFrom, firstRow);
+        cleanRowsAtEnd = Math.min(cleanRowsAtEnd, rows() - 1 - lastRow);
+        firstChangedRow = Math.min(firstChangedRow, firstRow);
+        lastChangedRow = Math.max(lastChangedRow, lastRow);
+    }
+
+    // rows whose text or colors changed since forgetChangedRows, empty if first > last
+    private int firstChangedRow = 0;
+    private int lastChangedRow = Integer.MAX_VALUE;
+
+    public int firstChangedRow() {
+        return firstChangedRow;
+    }
+
+    public int lastChangedRow() {
+        return lastChangedRow;
+    }
+
+    public void forgetChangedRows() {
+        firstChangedRow = Integer.MAX_VALUE;
+        lastChangedRow = -1;
+    }
+
+    private void changeAllRows() {
+        firstChangedRow = 0;
+        lastChangedRow = Integer.MAX_VALUE;
+    }
+
     // CURSOR
 
     public int cursor() {
@@ -374,7 +739,7 @@ public final class Freditor extends CharZipper {
 
     public void setCursorTo(String regex, int group) {
         Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(toString());
+        Matcher matcher = pattern.matcher(leafCursor());
         if (matcher.find()) {
             setCursorTo(matcher.start(group));
         }
@@ -412,32 +777,124 @@ public final class Freditor extends CharZipper {
     private final ArrayDeque<Memento> past = new ArrayDeque<>();
     private final ArrayDeque<Memento> future = new ArrayDeque<>();
 
+    private int maxUndoSteps = Integer.MAX_VALUE;
+    private long maxUndoBytes = 64 << 20;
+    // sum of the retained bytes of all past mementos except the newest
+    private long pastBytes;
+
+    /**
+     * Limits how many undo steps are kept, and roughly how much memory they retain.
+     * The oldest steps are forgotten first, but the newest one is always kept.
+     * By default, only the memory is limited.
+     */
+    public void setUndoBudget(int maxSteps, long maxBytes) {
+        maxUndoSteps = maxSteps;
+        maxUndoBytes = maxBytes;
+        enforceUndoBudget();
+    }
+
+    public int undoSteps() {
+        return past.size();
+    }
+
+    long pastBytes() {
+        return pastBytes;
+    }
+
+    /**
+     * Estimates the memory retained by the undo and redo history
+     * beyond what the current text needs anyway.
+     */
+    public long retainedUndoBytes() {
+        Memento present = new Memento();
+        long bytes = pastBytes;
+        if (!past.isEmpty()) {
+            bytes += past.peek().bytesNotSharedWith(present);
+        }
+        Memento older = present;
+        for (Memento memento : future) {
+            bytes += memento.bytesNotSharedWith(older);
+            older = memento;
+        }
+        return bytes;
+    }
+
+    private void pushPast(Memento memento) {
+        Memento newest = past.peek();
+        if (newest != null) {
+            newest.retainedBytes = newest.bytesNotSharedWith(memento);
+            pastBytes += newest.retainedBytes;
+        }
+        past.push(memento);
+    }
+
+    private Memento popPast() {
+        Memento newest = past.pop();
+        if (!past.isEmpty()) {
+            pastBytes -= past.peek().retainedBytes;
+        }
+        return newest;
+    }
+
+    private void enforceUndoBudget() {
+        while (past.size() > maxUndoSteps || past.size() > 1 && pastBytes > maxUndoBytes) {
+            Memento oldest = past.removeLast();
+            if (!past.isEmpty()) {
+                pastBytes -= oldest.retainedBytes;
+            }
+        }
+    }
+
     private int lastCursor = -1;
     private EditorAction lastAction = EditorAction.OTHER;
 
     private void commit() {
-        past.push(new Memento());
+        if (journal != null) {
+            journal.commit(origin, cursor, desiredColumn);
+        }
+        pushPast(new Memento());
         future.clear();
+        enforceUndoBudget();
     }
 
     public void undo() {
+        if (past.isEmpty() && journaledHistory != null) {
+            replayJournaledHistory();
+        }
         if (past.isEmpty()) return;
 
+        if (journal != null) {
+            journal.record(EditJournal.UNDO);
+        }
         future.push(new Memento());
-        past.pop().restore();
+        popPast().restore();
         lastAction = EditorAction.OTHER;
     }
 
     public void redo() {
         if (future.isEmpty()) return;
 
-        past.push(new Memento());
+        if (journal != null) {
+            journal.record(EditJournal.REDO);
+        }
+        pushPast(new Memento());
         future.pop().restore();
         lastAction = EditorAction.OTHER;
     }
 
     public void uncommit() {
-        past.pop();
+        if (journal != null) {
+            journal.record(EditJournal.UNCOMMIT);
+        }
+        popPast();
+    }
+
+    // Undoes the last commit without making it redoable
+    private void discard() {
+        if (journal != null) {
+            journal.record(EditJournal.DISCARD);
+        }
+        popPast().restore();
     }
 
     private boolean deleteSelection() {
@@ -622,7 +1079,7 @@ public final class Freditor extends CharZipper {
                 forgetDesiredColumn();
                 lastAction = EditorAction.OTHER;
             } else {
-                past.pop().restore();
+                discard();
             }
         }, doNothing);
     }
@@ -631,7 +1088,7 @@ public final class Freditor extends CharZipper {
         final int len = length();
         while (cursor < len) {
             FlexerState state = stateAt(cursor);
-            if (Flexer.nestingDelta.getOrDefault(state, 0) == -1) {
+            if (flexer.nestingDeltaOf(stateIdAt(cursor)) == -1) {
                 origin = cursor + 1;
             } else if (state != Flexer.NEWLINE && state != Flexer.SPACE_HEAD) {
                 return;
@@ -644,26 +1101,70 @@ public final class Freditor extends CharZipper {
         final int len = length();
         int nesting = 0;
         do {
-            nesting += Flexer.nestingDelta.getOrDefault(stateAt(cursor), 0);
+            nesting += flexer.nestingDeltaOf(stateIdAt(cursor));
             cursor = endOfLexeme(cursor);
         } while (nesting > 0 && cursor < len);
     }
 
     public void replace(String regex, String replacement) {
-        String text = toString();
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(text);
-        String replaced = matcher.replaceAll(replacement);
+        // the matcher reads the document one leaf at a time, so all matches are collected before editing
+        Matcher matcher = Pattern.compile(regex).matcher(leafCursor());
+        IntStack spans = new IntStack();
+        ArrayList<String> replacements = new ArrayList<>();
+        final boolean literal = replacement.indexOf('\\') < 0 && replacement.indexOf('$') < 0;
+        StringBuffer expanded = new StringBuffer();
+        int appended = 0;
+        while (matcher.find()) {
+            spans.push(matcher.start());
+            spans.push(matcher.end());
+            if (literal) {
+                replacements.add(replacement);
+            } else {
+                // appendReplacement also appends the text since the previous match, which is cut off again
+                expanded.setLength(0);
+                matcher.appendReplacement(expanded, replacement);
+                replacements.add(expanded.substring(matcher.start() - appended));
+                appended = matcher.end();
+            }
+        }
 
         commit();
         int row = row();
         int column = column();
-        loadFromString(replaced);
+        // back to front, so the spans still to be replaced keep their positions
+        for (int k = replacements.size() - 1; k >= 0; --k) {
+            int end = spans.pop();
+            int start = spans.pop();
+            replaceDifference(start, end, replacements.get(k));
+        }
         setRowAndColumn(row, column);
         adjustOrigin();
         lastAction = EditorAction.OTHER;
     }
 
+    // Only the span between the common prefix and the common suffix is edited,
+    // so line breaks and flexer states outside of that span are kept.
+    private void replaceDifference(int start, int end, String replaced) {
+        final int newLen = replaced.length();
+        final LeafCursor text = leafCursor();
+        int limit = Math.min(end - start, newLen);
+        int prefix = 0;
+        while (prefix < limit && text.charAt(start + prefix) == replaced.charAt(prefix)) {
+            ++prefix;
+        }
+        limit -= prefix;
+        int suffix = 0;
+        while (suffix < limit && text.charAt(end - 1 - suffix) == replaced.charAt(newLen - 1 - suffix)) {
+            ++suffix;
+        }
+        if (start + prefix < end - suffix) {
+            deleteRange(start + prefix, end - suffix);
+        }
+        if (prefix < newLen - suffix) {
+            insertAt(start + prefix, replaced.substring(prefix, newLen - suffix));
+        }
+    }
+
     // NAVIGATION
 
     public void moveCursorLeft() {
@@ -770,15 +1271,12 @@ public final class Freditor extends CharZipper {
             int home = homePositionOfRow(above);
             int end = endPositionOfRow(above);
             int len = end - home + 1;
-            deleteRightOf(end);
-            String line = deleteRange(home, end);
+            int destination = endPositionOf(selectionEndForLineMovement());
+            // the line above trades places with the selected lines, around the line break in between
+            swapRanges(home, end, end + 1, destination);
 
             cursor -= len;
             origin -= len;
-
-            int destination = endPositionOf(selectionEndForLineMovement());
-            insertAt(destination, '\n');
-            insertAt(destination + 1, line);
         }
     }
 
@@ -798,12 +1296,9 @@ public final class Freditor extends CharZipper {
             int home = homePositionOfRow(below);
             int end = endPositionOfRow(below);
             int len = end - home + 1;
-            String line = deleteRange(home, end);
-            deleteLeftOf(home);
-
             int destination = homePositionOf(selectionStart());
-            insertAt(destination, line);
-            insertAt(destination + len - 1, '\n');
+            // the selected lines trade places with the line below, around the line break in between
+            swapRanges(destination, home - 1, home, end);
 
             cursor += len;
             origin += len;
@@ -814,33 +1309,219 @@ public final class Freditor extends CharZipper {
 
     public void indent() {
         final int oldRow = row();
-        int[] corrections = indenter.corrections(this);
-        for (int row = corrections.length - 1; row >= 0; --row) {
-            correct(row, corrections[row]);
-        }
+        indentEditedRows();
         setRowAndColumn(oldRow, leadingSpaces(homePositionOfRow(oldRow)));
         adjustOrigin();
         forgetDesiredColumn();
     }
 
-    private void correct(int row, int correction) {
-        int start = homePositionOfRow(row);
-        if (correction > 0) {
-            insertAt(start, SpaceSequence.of(correction));
-        } else if (correction < 0) {
-            deleteRange(start, start - correction);
+    /**
+     * Recomputes the indentation from the first edited row until the levels converge
+     * with the ones cached during the last indentation, beyond the last edited row.
+     * All corrections are then applied as one edit.
+     */
+    private void indentEditedRows() {
+        final int rows = rows();
+        final int cleanFrom = rows - cleanRowsAtEnd;
+        final int first = Math.min(dirtyRowsFrom, rows);
+        int level = levelEnteringRow(first);
+        IntStack corrections = new IntStack();
+        IntStack levels = new IntStack();
+        int firstCorrected = -1;
+        int lastCorrected = -1;
+        int row;
+        for (row = first; row < rows; ++row) {
+            if (row >= cleanFrom && level == levelEnteringRow(row)) break;
+
+            int home = homePositionOfRow(row);
+            int end = endPositionOfRow(row);
+            int correction = indenter.indentationOfRow(this, level, home, end) - leadingSpaces(home);
+            if (correction != 0) {
+                if (firstCorrected < 0) {
+                    firstCorrected = row;
+                }
+                lastCorrected = row;
+            }
+            corrections.push(correction);
+            level = indenter.levelAfterRow(this, level, home, end);
+            levels.push(level);
+        }
+        if (firstCorrected >= 0) {
+            correct(firstCorrected, lastCorrected, corrections, first);
+        }
+        // the corrections replaced the line breaks in between
+        for (int r = first; r < row && r + 1 < rows; ++r) {
+            setLevelEnteringRow(r + 1, levels.get(r - first));
+        }
+        dirtyRowsFrom = rows;
+        cleanRowsAtEnd = rows;
+    }
+
+    private void correct(int firstRow, int lastRow, IntStack corrections, int offset) {
+        final int start = homePositionOfRow(firstRow);
+        final int end = endPositionOfRow(lastRow);
+        StringBuilder corrected = new StringBuilder(end - start + 64);
+        for (int row = firstRow; row <= lastRow; ++row) {
+            int home = homePositionOfRow(row);
+            int spaces = leadingSpaces(home);
+            corrected.append(SpaceSequence.of(spaces + corrections.get(row - offset)));
+            corrected.append(subSequence(home + spaces, endPositionOfRow(row)));
+            if (row < lastRow) {
+                corrected.append('\n');
+            }
+        }
+        deleteRange(start, end);
+        insertAt(start, corrected);
+    }
+
+    private int levelEnteringRow(int row) {
+        if (row == 0) return 0;
+        --row;
+        if (row < levelsBefore.size()) return levelsBefore.get(row);
+        return levelsAfter.get(numberOfLineBreaks() - 1 - row);
+    }
+
+    private void setLevelEnteringRow(int row, int level) {
+        --row;
+        if (row < levelsBefore.size()) {
+            levelsBefore = levelsBefore.set(row, level);
+        } else {
+            levelsAfter = levelsAfter.set(numberOfLineBreaks() - 1 - row, level);
         }
     }
 
     public int leadingSpaces(int index) {
         int start = index;
-        final int len = length();
-        while (index < len && charAt(index) == ' ') {
+        final LeafCursor text = leafCursor();
+        final int len = text.length();
+        while (index < len && text.charAt(index) == ' ') {
             ++index;
         }
         return index - start;
     }
 
+    // JOURNAL
+
+    private EditJournal journal;
+    // set until the history of earlier sessions has been replayed
+    private EditJournal journaledHistory;
+    // the text the journaled history must lead to
+    private CharZipper sessionStart;
+
+    /**
+     * Records all further edits and undo operations in the journal.
+     * If the journal was resumed, its history is replayed
+     * the first time the user tries to undo beyond the current session.
+     */
+    public void recordEditsIn(EditJournal journal, boolean resumed) {
+        this.journal = journal;
+        journaledHistory = resumed ? journal : null;
+        sessionStart = resumed ? snapshot() : null;
+    }
+
+    private void replayJournaledHistory() {
+        EditJournal source = journaledHistory;
+        journaledHistory = null;
+        // compared with the start rather than the current text,
+        // which differs if steps of this session were evicted from the undo budget
+        byte[] expected = sessionStart.toByteArray();
+        sessionStart = null;
+        ByteBuffer records;
+        try {
+            records = source.history();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        Memento present = new Memento();
+        ArrayDeque<Memento> redoable = new ArrayDeque<>(future);
+        EditJournal recording = journal;
+        journal = null;
+        try {
+            replay(records);
+        } catch (RuntimeException corrupted) {
+            past.clear();
+        }
+        if (!Arrays.equals(expected, toByteArray())) {
+            past.clear();
+        }
+        if (past.isEmpty()) {
+            pastBytes = 0;
+        }
+        journal = recording;
+        present.restore();
+        future.clear();
+        future.addAll(redoable);
+        lastAction = EditorAction.OTHER;
+    }
+
+    private void replay(ByteBuffer records) {
+        while (records.hasRemaining()) {
+            switch (records.get()) {
+                case EditJournal.LOAD:
+                    loadFromBytes(bytes(records, records.getInt()));
+                    break;
+
+                case EditJournal.CLEAR:
+                    clear();
+                    break;
+
+                case EditJournal.INSERT:
+                    final int index = records.getInt();
+                    insertAt(index, new String(bytes(records, records.getInt()), StandardCharsets.ISO_8859_1));
+                    break;
+
+                case EditJournal.DELETE:
+                    final int start = records.getInt();
+                    deleteRange(start, records.getInt());
+                    break;
+
+                case EditJournal.SWAP:
+                    final int a = records.getInt();
+                    final int b = records.getInt();
+                    final int c = records.getInt();
+                    swapRanges(a, b, c, records.getInt());
+                    break;
+
+                case EditJournal.COMMIT:
+                    origin = records.getInt();
+                    cursor = records.getInt();
+                    desiredColumn = records.getInt();
+                    commit();
+                    break;
+
+                case EditJournal.UNDO:
+                    undo();
+                    break;
+
+                case EditJournal.REDO:
+                    redo();
+                    break;
+
+                case EditJournal.UNCOMMIT:
+                    uncommit();
+                    break;
+
+                case EditJournal.DISCARD:
+                    discard();
+                    break;
+
+                case EditJournal.CHECKPOINT:
+                    records.position(records.position() + 8);
+                    break;
+
+                default:
+                    throw new IllegalStateException("unknown journal record");
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer records, int length) {
+        byte[] bytes = new byte[length];
+        records.get(bytes);
+        return bytes;
+    }
+
     // PERSISTENCE
 
     public void loadFromFile(String pathname) throws IOException {
@@ -852,6 +1533,9 @@ public final class Freditor extends CharZipper {
     }
 
     private void loadFromBytes(byte[] bytes) {
+        if (journal != null) {
+            journal.load(bytes);
+        }
         super.clear();
         insertBeforeFocus(bytes);
         refreshBookkeeping();
@@ -861,29 +1545,4 @@ public final class Freditor extends CharZipper {
         adjustOrigin();
         forgetDesiredColumn();
     }
-
-    public void saveToFile(String pathname) throws IOException {
-        try (FileOutputStream out = new FileOutputStream(pathname)) {
-            if ("\n".equals(System.lineSeparator())) {
-                out.write(toByteArray());
-            } else {
-                saveWithNativeLineSeparators(out);
-            }
-        }
-    }
-
-    private void saveWithNativeLineSeparators(FileOutputStream out) throws IOException {
-        byte[] bytes = toByteArray();
-        int end = endPositionOfRow(0);
-        out.write(bytes, 0, end);
-
-        byte[] lineSeparator = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
-        for (int i = 1, rows = rows(); i < rows; ++i) {
-            out.write(lineSeparator);
-
-            int start = end + 1;
-            end = endPositionOfRow(i);
-            out.write(bytes, start, end - start);
-        }
-    }
 }
\ No newline at end of file
@@ -21,8 +21,12 @@ public class FreditorUI extends JComponent {
     public static final int frontHeight = Fronts.front.height;
 
     private final Freditor freditor;
+    // non-null while a file too large for the freditor is being viewed
+    private MappedText view;
 
     private JComponent componentToRepaint = this;
+    // set by the line numbers of this editor, widened whenever the number of lines needs another digit
+    LineNumbers lineNumbers;
     private int firstVisibleLine;
     private int firstVisibleColumn;
 
@@ -46,7 +50,11 @@ public class FreditorUI extends JComponent {
     }
 
     public int lastLine() {
-        return freditor.rows() - 1;
+        return text().rows() - 1;
+    }
+
+    private LexedText text() {
+        return view != null ? view : freditor;
     }
 
     private int visibleColumns() {
@@ -82,7 +90,58 @@ public class FreditorUI extends JComponent {
         }
         firstVisibleColumn = atLeastZero(firstVisibleColumn);
 
-        componentToRepaint.repaint();
+        repaintChanges();
+    }
+
+    // what the last paint depended on, besides the rows that changed since
+    private int paintedFirstLine = -1;
+    private int paintedFirstColumn;
+    private int paintedRows;
+    private int paintedFirstRow;
+    private int paintedLastRow;
+
+    private void rememberPaintedState() {
+        paintedFirstLine = firstVisibleLine;
+        paintedFirstColumn = firstVisibleColumn;
+        paintedRows = freditor.rows();
+        paintedFirstRow = firstHighlightedRow();
+        paintedLastRow = lastHighlightedRow();
+        freditor.forgetChangedRows();
+    }
+
+    // The current line, selection and matching parens are highlighted
+    private int firstHighlightedRow() {
+        int[] row = {Math.min(freditor.row(), freditor.rowOfPosition(freditor.selectionStart()))};
+        int start = freditor.homePositionOfRow(firstVisibleLine);
+        freditor.findOpeningParen(start, position -> row[0] = Math.min(row[0], freditor.rowOfPosition(position)), Freditor.doNothing);
+        return row[0];
+    }
+
+    private int lastHighlightedRow() {
+        int[] row = {Math.max(freditor.row(), freditor.rowOfPosition(freditor.selectionEnd()))};
+        int end = freditor.homePositionOfRow(lastVisibleLine() + 2);
+        freditor.findClosingParen(end, position -> row[0] = Math.max(row[0], freditor.rowOfPosition(position)), Freditor.doNothing);
+        return row[0];
+    }
+
+    /**
+     * Repaints only the rows that changed since the last paint,
+     * or everything including the line numbers after scrolling or adding or removing rows.
+     */
+    private void repaintChanges() {
+        if (view != null || firstVisibleLine != paintedFirstLine || firstVisibleColumn != paintedFirstColumn
+                || freditor.rows() != paintedRows) {
+            adjustLineNumbers();
+            componentToRepaint.repaint();
+            return;
+        }
+        int firstRow = Math.min(Math.min(freditor.firstChangedRow(), paintedFirstRow), firstHighlightedRow());
+        int lastRow = Math.max(Math.max(freditor.lastChangedRow(), paintedLastRow), lastHighlightedRow());
+        firstRow = Math.max(firstRow, firstVisibleLine);
+        lastRow = Math.min(lastRow, lastVisibleLine() + 1);
+        if (firstRow <= lastRow) {
+            repaint(0, y(firstRow), getWidth(), (lastRow - firstRow + 1) * frontHeight);
+        }
     }
 
     private static final int CTRL_OR_META = InputEvent.CTRL_DOWN_MASK | InputEvent.META_DOWN_MASK;
@@ -112,6 +171,8 @@ public class FreditorUI extends JComponent {
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyTyped(KeyEvent event) {
+                if (view != null) return;
+
                 char ch = event.getKeyChar();
                 if (ch >= 32 && ch < 127 || ch >= 160 && ch < 256) {
                     if ((event.getModifiersEx() & CTRL_OR_META) == 0) {
@@ -125,6 +186,10 @@ public class FreditorUI extends JComponent {
             @Override
             public void keyPressed(KeyEvent event) {
                 event.consume();
+                if (view != null) {
+                    scrollView(event);
+                    return;
+                }
                 char previousCharTyped = charTyped;
                 charTyped = 0;
                 switch (event.getKeyCode()) {
@@ -303,6 +368,10 @@ public class FreditorUI extends JComponent {
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent event) {
+                if (view != null) {
+                    requestFocusInWindow();
+                    return;
+                }
                 switch (event.getClickCount()) {
                     case 1:
                         int row = event.getY() / frontHeight + firstVisibleLine;
@@ -318,7 +387,7 @@ public class FreditorUI extends JComponent {
                         freditor.selectLexemeAtCursor();
                         break;
                 }
-                componentToRepaint.repaint();
+                repaintChanges();
                 requestFocusInWindow();
             }
         });
@@ -326,10 +395,12 @@ public class FreditorUI extends JComponent {
         addMouseMotionListener(new MouseAdapter() {
             @Override
             public void mouseDragged(MouseEvent event) {
+                if (view != null) return;
+
                 int row = event.getY() / frontHeight + firstVisibleLine;
                 int column = event.getX() / frontWidth + firstVisibleColumn;
                 freditor.setRowAndColumn(atLeastZero(row), atLeastZero(column));
-                componentToRepaint.repaint();
+                repaintChanges();
                 requestFocusInWindow();
             }
         });
@@ -360,6 +431,46 @@ public class FreditorUI extends JComponent {
         });
     }
 
+    private void scrollView(KeyEvent event) {
+        switch (event.getKeyCode()) {
+            case KeyEvent.VK_UP:
+                --firstVisibleLine;
+                break;
+
+            case KeyEvent.VK_DOWN:
+                ++firstVisibleLine;
+                break;
+
+            case KeyEvent.VK_PAGE_UP:
+                firstVisibleLine -= visibleLines();
+                break;
+
+            case KeyEvent.VK_PAGE_DOWN:
+                firstVisibleLine += visibleLines();
+                break;
+
+            case KeyEvent.VK_HOME:
+                firstVisibleLine = 0;
+                break;
+
+            case KeyEvent.VK_END:
+                // indexes through to the end, so lastLine below is final as well
+                firstVisibleLine = view.rowOfPosition(view.length()) - visibleLines() + 1;
+                break;
+
+            case KeyEvent.VK_LEFT:
+                --firstVisibleColumn;
+                break;
+
+            case KeyEvent.VK_RIGHT:
+                ++firstVisibleColumn;
+                break;
+        }
+        firstVisibleLine = atLeastZero(Math.min(firstVisibleLine, lastLine()));
+        firstVisibleColumn = atLeastZero(firstVisibleColumn);
+        componentToRepaint.repaint();
+    }
+
     public String lexemeAtCursor() {
         return freditor.lexemeAtCursor();
     }
@@ -370,10 +481,16 @@ public class FreditorUI extends JComponent {
 
     @Override
     public void paint(Graphics g) {
+        rememberPaintedState();
+        if (view != null) {
+            paintBackground(g);
+            paintLexemes(g, view);
+            return;
+        }
         paintBackground(g);
         paintCurrentLineOrSelection(g);
         paintMatchingParensBackground(g);
-        paintLexemes(g);
+        paintLexemes(g, freditor);
         if (hasFocus()) {
             paintCursor(g);
         }
@@ -445,29 +562,55 @@ public class FreditorUI extends JComponent {
         g.fillRect(x(freditor.columnOfPosition(position)), y(freditor.rowOfPosition(position)), frontWidth, frontHeight);
     }
 
-    private void paintLexemes(Graphics g) {
+    private final RowRasters rowRasters = new RowRasters(Fronts.front);
+    private int[] rowKey = new int[0];
+
+    private void paintLexemes(Graphics g, LexedText text) {
         final int componentWidth = getWidth();
         final int componentHeight = getHeight();
-        int x = -firstVisibleColumn * frontWidth;
+        final int columns = (componentWidth + frontWidth - 1) / frontWidth;
+        if (rowKey.length < columns) {
+            rowKey = new int[columns];
+        }
+        final Rectangle clip = g.getClipBounds();
+        rowRasters.begin(componentWidth);
+        int row = firstVisibleLine;
+        int column = -firstVisibleColumn;
         int y = 0;
-        final int len = freditor.length();
-        for (int i = freditor.homePositionOfRow(firstVisibleLine); i < len; ) {
-            int k = freditor.endOfLexeme(i);
-            int rgb = freditor.flexer.pickColorForLexeme(freditor.stateAt(i - 1), freditor.stateAt(k - 1));
+        final CharSequence chars = text.leafCursor();
+        final int len = text.length();
+        int i = text.homePositionOfRow(firstVisibleLine);
+        while (i < len) {
+            int k = text.endOfLexeme(i);
+            int rgb = freditor.flexer.pickColorForLexeme(text.stateAt(i - 1), text.stateAt(k - 1));
             for (; i < k; ++i) {
-                char c = freditor.charAt(i);
+                char c = chars.charAt(i);
                 if (c != '\n') {
-                    if (x >= 0) {
-                        Fronts.front.drawCharacter(g, x, y, c, rgb);
+                    if (column >= 0) {
+                        rowKey[column] = rgb << 8 | c & 255;
                     }
-                    x += frontWidth;
-                    if (x < componentWidth) continue;
-                    i = freditor.endPositionOf(i);
+                    ++column;
+                    if (column < columns) continue;
+                    i = text.endPositionOf(i);
                 }
+                paintRow(g, clip, row, y, column);
+                ++row;
                 y += frontHeight;
-                if (y >= componentHeight) return;
-                x = -firstVisibleColumn * frontWidth;
+                if (y >= componentHeight) break;
+                column = -firstVisibleColumn;
             }
+            if (y >= componentHeight) break;
+        }
+        if (i == len && y < componentHeight) {
+            // last row without line break
+            paintRow(g, clip, row, y, column);
+        }
+        rowRasters.end();
+    }
+
+    private void paintRow(Graphics g, Rectangle clip, int row, int y, int columns) {
+        if (clip == null || y < clip.y + clip.height && y + frontHeight > clip.y) {
+            rowRasters.paintRow(g, row, y, rowKey, atLeastZero(columns));
         }
     }
 
@@ -535,11 +678,13 @@ public class FreditorUI extends JComponent {
 
     public void insert(CharSequence s) {
         freditor.insert(s);
+        adjustLineNumbers();
         componentToRepaint.repaint();
     }
 
     public void append(CharSequence s) {
         freditor.insertAt(freditor.length(), s);
+        adjustLineNumbers();
         componentToRepaint.repaint();
     }
 
@@ -549,24 +694,57 @@ public class FreditorUI extends JComponent {
 
     public void replace(String regex, String replacement) {
         freditor.replace(regex, replacement);
+        adjustLineNumbers();
         componentToRepaint.repaint();
     }
 
     public void indent() {
         freditor.indent();
+        adjustLineNumbers();
         componentToRepaint.repaint();
     }
 
     public void loadFromFile(String pathname) throws IOException {
         freditor.loadFromFile(pathname);
+        replaceView(null);
         adjustView();
     }
 
     public void loadFromString(String program) {
         freditor.loadFromString(program);
+        replaceView(null);
         adjustView();
     }
 
+    /**
+     * Shows a file that may be too large to load, without allowing edits.
+     * Loading a file or string ends viewing.
+     */
+    public void viewFile(String pathname) throws IOException {
+        // the row count only grows while indexing, so the end of the file is painted once it is known
+        replaceView(new MappedText(pathname, freditor.flexer, () -> SwingUtilities.invokeLater(() -> {
+            adjustLineNumbers();
+            componentToRepaint.repaint();
+        })));
+        firstVisibleLine = 0;
+        firstVisibleColumn = 0;
+        adjustLineNumbers();
+        componentToRepaint.repaint();
+    }
+
+    private void adjustLineNumbers() {
+        if (lineNumbers != null) {
+            lineNumbers.adjustDigits(lastLine() + 1);
+        }
+    }
+
+    private void replaceView(MappedText view) {
+        if (this.view != null) {
+            this.view.close();
+        }
+        this.view = view;
+    }
+
     public void saveToFile(String pathname) throws IOException {
         freditor.saveToFile(pathname);
     }
@@ -3,9 +3,11 @@ package freditor;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Front {
     private final int[] argb;
@@ -51,6 +53,34 @@ public class Front {
         }
     }
 
+    /**
+     * Writes the glyph sheet with one byte per pixel, since all channels are equal.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(imageWidth);
+        out.writeInt(imageHeight);
+        byte[] alpha = new byte[argb.length];
+        for (int i = 0; i < argb.length; ++i) {
+            alpha[i] = (byte) argb[i];
+        }
+        out.write(alpha);
+    }
+
+    static Front readFrom(DataInput in) throws IOException {
+        final int imageWidth = in.readInt();
+        final int imageHeight = in.readInt();
+        if (imageWidth <= 0 || imageHeight <= 0 || (long) imageWidth * imageHeight > 1 << 26) {
+            throw new IOException("corrupt glyph sheet " + imageWidth + "x" + imageHeight);
+        }
+        byte[] alpha = new byte[imageWidth * imageHeight];
+        in.readFully(alpha);
+        int[] argb = new int[alpha.length];
+        for (int i = 0; i < alpha.length; ++i) {
+            argb[i] = alpha[i] & 255;
+        }
+        return new Front(argb, imageWidth, imageHeight);
+    }
+
     Front halfScaled() {
         final int size = argb.length;
         int[] scaled = new int[size / 4];
@@ -131,23 +161,66 @@ public class Front {
         }
     }
 
-    private final HashMap<Integer, BufferedImage> colored = new HashMap<>();
+    private static final class Colored {
+        final int rgb;
+        final BufferedImage image;
+
+        Colored(int rgb, BufferedImage image) {
+            this.rgb = rgb;
+            this.image = image;
+        }
+    }
+
+    // Open-addressed cache of colored fonts; racing threads may color the same font twice, which is harmless
+    private static final int COLORED_BITS = 6;
+    private static final int COLORED_CAPACITY = 1 << COLORED_BITS;
+    private static final int COLORED_PROBES = 4;
+    private final AtomicReferenceArray<Colored> colored = new AtomicReferenceArray<>(COLORED_CAPACITY);
 
-    private synchronized BufferedImage coloredFont(int rgb) {
+    private BufferedImage coloredFont(int rgb) {
         rgb &= 0x00ffffff;
-        BufferedImage result = colored.get(rgb);
-        if (result == null) {
-            result = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-            fillWithColor(rgb);
-            result.setRGB(0, 0, imageWidth, imageHeight, argb, 0, imageWidth);
-            colored.put(rgb, result);
+        final int home = (rgb * 0x9e3779b9) >>> (32 - COLORED_BITS);
+        for (int i = 0; i < COLORED_PROBES; ++i) {
+            Colored entry = colored.get((home + i) & (COLORED_CAPACITY - 1));
+            if (entry == null) break;
+            if (entry.rgb == rgb) return entry.image;
         }
-        return result;
+        Colored entry = new Colored(rgb, newColoredFont(rgb));
+        for (int i = 0; i < COLORED_PROBES; ++i) {
+            if (colored.compareAndSet((home + i) & (COLORED_CAPACITY - 1), null, entry)) return entry.image;
+        }
+        // all probed slots are taken, evict the first one
+        colored.set(home, entry);
+        return entry.image;
     }
 
-    private void fillWithColor(int rgb) {
+    private BufferedImage newColoredFont(int rgb) {
+        int[] pixels = new int[argb.length];
         for (int i = 0; i < argb.length; ++i) {
-            argb[i] = argb[i] & 0xff000000 | rgb;
+            pixels[i] = argb[i] & 0xff000000 | rgb;
+        }
+        BufferedImage result = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
+        result.setRGB(0, 0, imageWidth, imageHeight, pixels, 0, imageWidth);
+        return result;
+    }
+
+    /**
+     * Writes the glyph for c into an ARGB pixel array with the given stride,
+     * clipped at the right edge. Equivalent to drawCharacter on a transparent image.
+     */
+    void rasterizeCharacter(int[] pixels, int stride, int x, int y, char c, int rgb) {
+        if ((c & 0x7f) < 32) return;
+
+        int sx = ((c & 0x7f) - 32) * width;
+        int sy = (c >>> 7) * height;
+        final int w = Math.min(width, stride - x);
+        rgb &= 0x00ffffff;
+        for (int row = 0; row < height; ++row) {
+            int src = (sy + row) * imageWidth + sx;
+            int dst = (y + row) * stride + x;
+            for (int k = 0; k < w; ++k) {
+                pixels[dst + k] = argb[src + k] & 0xff000000 | rgb;
+            }
         }
     }
 
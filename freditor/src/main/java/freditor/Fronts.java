@@ -14,35 +14,8 @@ public class Fronts {
     public static final Font sansSerif = new Font(Font.SANS_SERIF, Font.PLAIN, point);
 
     private static FrontIcon chooseFrontIcon() {
-        Front[] fronts = new Front[13];
-        fronts[12] = Front.read("/font.png");
-        // Replacing anonymous inner class with lambda causes DEADLOCK,
-        // see https://stackoverflow.com/questions/45246122
-        // noinspection Convert2Lambda
-        Thread eleven = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // 11 is the most expensive by a long shot
-                fronts[11] = fronts[12].thirdScaled(11).halfScaled().halfScaled();
-            }
-        });
-        eleven.start();
-        fronts[10] = fronts[12].thirdScaled(5).halfScaled();
-        fronts[9] = fronts[12].scaled(3).halfScaled().halfScaled();
-        fronts[8] = fronts[12].thirdScaled(2);
-        fronts[7] = fronts[12].thirdScaled(7).halfScaled().halfScaled();
-        fronts[6] = fronts[12].halfScaled();
-        fronts[5] = fronts[10].halfScaled();
-        fronts[4] = fronts[8].halfScaled();
-        fronts[3] = fronts[6].halfScaled();
-        fronts[2] = fronts[4].halfScaled();
+        Front[] fronts = ScaledFronts.load();
         final int EMPTY_SLOTS = 2;
-        try {
-            eleven.join();
-        } catch (InterruptedException ex) {
-            fronts[11] = fronts[12];
-            ex.printStackTrace();
-        }
 
         String title = "Almost there...";
         String prompt = "Please choose font height:";
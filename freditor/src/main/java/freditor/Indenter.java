@@ -1,5 +1,9 @@
 package freditor;
 
+/**
+ * Freditor indents only the rows edited since the last indentation, one row at a time,
+ * so indentationOfRow and levelAfterRow are the extension points.
+ */
 public class Indenter {
     public static final Indenter instance = new Indenter();
 
@@ -7,7 +11,19 @@ public class Indenter {
         return "";
     }
 
-    public int[] corrections(Freditor freditor) {
-        return new int[0];
+    /**
+     * Returns the leading spaces the row from home to end should have,
+     * given the indentation level entering that row.
+     */
+    public int indentationOfRow(Freditor freditor, int level, int home, int end) {
+        return freditor.leadingSpaces(home);
+    }
+
+    /**
+     * Returns the indentation level entering the row after the one from home to end.
+     * Must not depend on the leading spaces of that row.
+     */
+    public int levelAfterRow(Freditor freditor, int level, int home, int end) {
+        return level;
     }
 }
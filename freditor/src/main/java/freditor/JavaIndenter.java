@@ -13,27 +13,24 @@ public class JavaIndenter extends Indenter {
     }
 
     @Override
-    public int[] corrections(Freditor freditor) {
-        final int rows = freditor.rows();
-        int[] corrections = new int[rows];
-        int indentation = 0;
-        for (int row = 0; row < rows; ++row) {
-            int home = freditor.homePositionOfRow(row);
-            int end = freditor.endPositionOfRow(row);
-            corrections[row] = atLeastZero(indentation + leadingClosers(freditor, home, end)) - freditor.leadingSpaces(home);
-            indentation = atLeastZero(indentation + openersAndClosers(freditor, home, end));
-        }
-        return corrections;
+    public int indentationOfRow(Freditor freditor, int level, int home, int end) {
+        return atLeastZero(level + leadingClosers(freditor, home, end));
+    }
+
+    @Override
+    public int levelAfterRow(Freditor freditor, int level, int home, int end) {
+        return atLeastZero(level + openersAndClosers(freditor, home, end));
     }
 
     private int leadingClosers(Freditor freditor, int home, int end) {
+        final CharSequence text = freditor.leafCursor();
         int difference = 0;
         for (int i = home; i < end; ++i) {
             FlexerState state = freditor.stateAt(i);
             Integer delta = indentationDelta.get(state);
             if (delta != null && delta < 0) {
                 difference += delta;
-            } else if (freditor.charAt(i) != ' ') {
+            } else if (text.charAt(i) != ' ') {
                 return difference;
             }
         }
@@ -0,0 +1,24 @@
+package freditor;
+
+/**
+ * What FreditorUI needs in order to paint rows of lexemes.
+ */
+interface LexedText extends CharSequence {
+    int rows();
+
+    int homePositionOfRow(int row);
+
+    int endPositionOf(int position);
+
+    int endOfLexeme(int index);
+
+    FlexerState stateAt(int index);
+
+    /**
+     * Returns a view for reading consecutive characters,
+     * which may be cheaper than calling charAt on the text itself.
+     */
+    default CharSequence leafCursor() {
+        return this;
+    }
+}
@@ -2,28 +2,143 @@ package freditor;
 
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 import javax.swing.JComponent;
 
+/**
+ * Paints the line numbers from a cached image of the visible gutter.
+ * When the editor scrolls, the image is shifted instead of redrawn,
+ * and only rows whose numbers changed are rasterized again.
+ * The editor widens the gutter when the number of lines needs another digit,
+ * so painting never changes the layout.
+ */
 public class LineNumbers extends JComponent {
+    private static final int MIN_DIGITS = 4;
+
     private final FreditorUI editor;
 
+    private int digits;
+    private final char[] formatted = new char[10];
+
+    private BufferedImage image;
+    private int[] pixels;
+    private int stride;
+    // the line number painted into each row of the image, or 0 for blank rows
+    private int[] numbers = new int[0];
+    private int paintedFirstLine;
+
     public LineNumbers(FreditorUI editor) {
         this.editor = editor;
-        Dimension size = new Dimension(5 * FreditorUI.frontWidth, 1);
+        editor.lineNumbers = this;
+        resize(MIN_DIGITS);
+        adjustDigits(editor.lastLine() + 1);
+    }
+
+    void adjustDigits(int lines) {
+        final int requiredDigits = Math.max(MIN_DIGITS, digitsOf(lines));
+        if (requiredDigits != digits) {
+            resize(requiredDigits);
+            revalidate();
+        }
+    }
+
+    private void resize(int digits) {
+        this.digits = digits;
+        final int width = (digits + 1) * FreditorUI.frontWidth;
+        Dimension size = new Dimension(width, 1);
         setMinimumSize(size);
         setPreferredSize(size);
-        setMaximumSize(new Dimension(5 * FreditorUI.frontWidth, 65536));
+        setMaximumSize(new Dimension(width, 65536));
     }
 
     @Override
     public void paint(Graphics g) {
-        int y = 0;
-        int lastLineToPaint = Math.min(editor.lastVisibleLine(), editor.lastLine());
-        for (int line = editor.firstVisibleLine(); line <= lastLineToPaint; ) {
-            String s = String.format("%4d", ++line);
-            Fronts.front.drawString(g, 0, y, s, 0x000000);
-            y += FreditorUI.frontHeight;
+        final int lines = editor.lastLine() + 1;
+        // a view still being indexed may outgrow the gutter until its end is known
+        final int width = Math.max(digits, digitsOf(lines)) * FreditorUI.frontWidth;
+        final int rows = Math.max(0, editor.visibleLines());
+        if (image == null || image.getWidth() != width || numbers.length != rows) {
+            allocate(width, rows);
+        } else {
+            shift(editor.firstVisibleLine() - paintedFirstLine);
+        }
+        paintedFirstLine = editor.firstVisibleLine();
+
+        for (int row = 0; row < rows; ++row) {
+            final int line = paintedFirstLine + row;
+            final int number = line < lines ? line + 1 : 0;
+            if (numbers[row] != number) {
+                rasterize(row, number);
+            }
+        }
+        if (image != null) {
+            g.drawImage(image, 0, 0, null);
+        }
+    }
+
+    private static int digitsOf(int x) {
+        int result = 1;
+        for (; x >= 10; x /= 10) {
+            ++result;
+        }
+        return result;
+    }
+
+    private void allocate(int width, int rows) {
+        numbers = new int[rows];
+        if (rows == 0) {
+            image = null;
+            pixels = null;
+            return;
+        }
+        image = new BufferedImage(width, rows * FreditorUI.frontHeight, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        stride = width;
+    }
+
+    // Moves the rows still visible after scrolling by delta lines to their new place
+    private void shift(int delta) {
+        final int rows = numbers.length;
+        if (delta == 0 || rows == 0) return;
+
+        if (Math.abs(delta) >= rows) {
+            Arrays.fill(numbers, 0);
+            Arrays.fill(pixels, 0);
+            return;
+        }
+        final int rowPixels = stride * FreditorUI.frontHeight;
+        final int kept = rows - Math.abs(delta);
+        if (delta > 0) {
+            System.arraycopy(numbers, delta, numbers, 0, kept);
+            Arrays.fill(numbers, kept, rows, 0);
+            System.arraycopy(pixels, delta * rowPixels, pixels, 0, kept * rowPixels);
+            Arrays.fill(pixels, kept * rowPixels, rows * rowPixels, 0);
+        } else {
+            System.arraycopy(numbers, 0, numbers, -delta, kept);
+            Arrays.fill(numbers, 0, -delta, 0);
+            System.arraycopy(pixels, 0, pixels, -delta * rowPixels, kept * rowPixels);
+            Arrays.fill(pixels, 0, -delta * rowPixels, 0);
+        }
+    }
+
+    private void rasterize(int row, int number) {
+        final int rowPixels = stride * FreditorUI.frontHeight;
+        Arrays.fill(pixels, row * rowPixels, (row + 1) * rowPixels, 0);
+        numbers[row] = number;
+        if (number == 0) return;
+
+        // right-aligned digits, formatted without allocation
+        final int columns = stride / FreditorUI.frontWidth;
+        int i = columns;
+        for (int x = number; x > 0; x /= 10) {
+            formatted[--i] = (char) ('0' + x % 10);
+        }
+        final int y = row * FreditorUI.frontHeight;
+        for (; i < columns; ++i) {
+            Fronts.front.rasterizeCharacter(pixels, stride, i * FreditorUI.frontWidth, y, formatted[i], 0x000000);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,226 @@
+package freditor;
+
+import freditor.ephemeral.IntStack;
+import freditor.persistent.ByteSearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Read-only view of a file that is too large to be loaded into a Freditor.
+ * The file is memory-mapped, its line breaks are indexed by a background thread,
+ * and only the rows around the requested positions are lexed.
+ * <p>
+ * The indexer also lexes the whole file once, remembering the state every 64 KB,
+ * so the rows around a position are lexed from the nearest such checkpoint before them,
+ * even if that lies within a comment or string spanning many rows.
+ */
+public final class MappedText implements LexedText {
+    private final MappedByteBuffer buffer;
+    // the same bytes in little-endian order, for scanning eight at a time
+    private final ByteBuffer words;
+    private final int length;
+    public final Flexer flexer;
+
+    // guarded by this
+    private final IntStack lineBreaks = new IntStack();
+    // the state id before every CHECKPOINT_INTERVAL-th byte up to indexed
+    private final IntStack checkpoints = new IntStack();
+    private int indexed;
+    private int indexedStateId;
+    private final byte[] indexing = new byte[CHECKPOINT_INTERVAL];
+
+    // guarded by this
+    private int lexedStart;
+    private short[] lexed = new short[0];
+
+    // set once the view is discarded, which stops the background indexer
+    private volatile boolean closed;
+    private final Runnable whenFullyIndexed;
+
+    /**
+     * Calls whenFullyIndexed on the indexer thread once all rows are known,
+     * unless the view has been closed before.
+     */
+    public MappedText(String pathname, Flexer flexer, Runnable whenFullyIndexed) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pathname), READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(pathname + " is larger than 2 GB");
+
+            // the mapping remains valid after the channel is closed
+            buffer = channel.map(READ_ONLY, 0, size);
+            length = (int) size;
+        }
+        words = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.flexer = flexer;
+        this.whenFullyIndexed = whenFullyIndexed;
+
+        Thread indexer = new Thread(this::indexAll, "line break indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // CHARSEQUENCE
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(index) & 255);
+    }
+
+    @Override
+    public String subSequence(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        copyIntoArray(start, bytes, bytes.length);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private void copyIntoArray(int start, byte[] bytes, int length) {
+        // duplicates have their own position, so concurrent copies do not interfere
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start);
+        duplicate.get(bytes, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length);
+    }
+
+    // LINE BREAKS
+
+    private static final int INDEXING_CHUNK_SIZE = 1 << 20;
+    private static final int CHECKPOINT_INTERVAL = 1 << 16;
+
+    private void indexAll() {
+        while (!closed && indexChunk()) {
+            Thread.yield();
+        }
+        if (!closed) {
+            whenFullyIndexed.run();
+        }
+    }
+
+    /**
+     * Stops the background indexer; the view must not be used afterwards.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private synchronized boolean indexChunk() {
+        final int end = Math.min(length, indexed + INDEXING_CHUNK_SIZE);
+        for (int i = ByteSearch.indexOf(words, (byte) '\n', indexed, end); i >= 0; i = ByteSearch.indexOf(words, (byte) '\n', i + 1, end)) {
+            lineBreaks.push(i);
+        }
+        // the chunk size is a multiple of the checkpoint interval
+        for (int i = indexed; i < end; i += CHECKPOINT_INTERVAL) {
+            checkpoints.push(indexedStateId);
+            final int stop = Math.min(end, i + CHECKPOINT_INTERVAL);
+            copyIntoArray(i, indexing, stop - i);
+            indexedStateId = flexer.lastStateId(indexedStateId, indexing, 0, stop - i);
+        }
+        indexed = end;
+        return indexed < length;
+    }
+
+    // Indexes synchronously whatever the background thread has not reached yet
+    private void indexThroughRow(int row) {
+        while (lineBreaks.size() < row && indexed < length) {
+            indexChunk();
+        }
+    }
+
+    private void indexThroughPosition(int position) {
+        while (indexed <= position && indexed < length) {
+            indexChunk();
+        }
+    }
+
+    /**
+     * Returns the number of rows indexed so far;
+     * rowOfPosition(length()) waits for the last row instead.
+     */
+    @Override
+    public synchronized int rows() {
+        return lineBreaks.size() + 1;
+    }
+
+    @Override
+    public synchronized int homePositionOfRow(int row) {
+        if (row == 0) return 0;
+        indexThroughRow(row);
+        if (row <= lineBreaks.size()) return lineBreaks.get(row - 1) + 1;
+        return length;
+    }
+
+    public synchronized int endPositionOfRow(int row) {
+        indexThroughRow(row + 1);
+        if (row < lineBreaks.size()) return lineBreaks.get(row);
+        return length;
+    }
+
+    public synchronized int rowOfPosition(int position) {
+        indexThroughPosition(position);
+        return lineBreaks.binarySearch(position);
+    }
+
+    @Override
+    public int endPositionOf(int position) {
+        return endPositionOfRow(rowOfPosition(position));
+    }
+
+    // FLEXER
+
+    private static final int CONTEXT_ROWS = 100;
+    private static final int LEXED_ROWS = 400;
+    private static final int MAX_LEXED_BYTES = 1 << 20;
+
+    @Override
+    public synchronized FlexerState stateAt(int index) {
+        if (index < 0 || index >= length) return Flexer.END;
+
+        if (index < lexedStart || index >= lexedStart + lexed.length) {
+            lexRowsAround(index);
+        }
+        return flexer.stateOf(lexed[index - lexedStart] & 0xffff);
+    }
+
+    private void lexRowsAround(int index) {
+        final int row = rowOfPosition(index);
+        int start = homePositionOfRow(Math.max(0, row - CONTEXT_ROWS));
+        int end = endPositionOfRow(row + LEXED_ROWS);
+        start = Math.max(start, index - MAX_LEXED_BYTES / 2);
+        end = Math.max(index + 1, Math.min(end, start + MAX_LEXED_BYTES));
+
+        // rowOfPosition has indexed, and thus checkpointed, beyond index
+        final int checkpoint = start / CHECKPOINT_INTERVAL;
+        start = checkpoint * CHECKPOINT_INTERVAL;
+        byte[] bytes = new byte[end - start];
+        copyIntoArray(start, bytes, bytes.length);
+        short[] ids = new short[bytes.length];
+        flexer.nextStateIds(checkpoints.get(checkpoint), bytes, 0, bytes.length, ids, 0);
+        lexedStart = start;
+        lexed = ids;
+    }
+
+    @Override
+    public int endOfLexeme(int index) {
+        do {
+            ++index;
+        } while (!stateAt(index).isHead());
+        return index;
+    }
+}
@@ -0,0 +1,84 @@
+package freditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Caches the glyphs of each visible row as a transparent image,
+ * so a repaint costs one blit per row and rasterizes only rows whose characters or colors changed.
+ * A row is identified by its characters and colors as one int per column: rgb << 8 | character.
+ */
+final class RowRasters {
+    private static final class Raster {
+        final BufferedImage image;
+        final int[] pixels;
+        int[] key = new int[0];
+
+        Raster(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    private final Front front;
+    private int width;
+
+    private HashMap<Integer, Raster> previous = new HashMap<>();
+    private HashMap<Integer, Raster> current = new HashMap<>();
+
+    RowRasters(Front front) {
+        this.front = front;
+    }
+
+    /**
+     * Must be called before painting the visible rows of a component with the given width.
+     */
+    void begin(int width) {
+        if (width != this.width) {
+            this.width = width;
+            previous.clear();
+        }
+    }
+
+    void paintRow(Graphics g, int row, int y, int[] key, int length) {
+        Raster raster = previous.remove(row);
+        if (raster == null || !hasKey(raster, key, length)) {
+            if (raster == null) {
+                raster = new Raster(width, front.height);
+            }
+            rasterize(raster, key, length);
+        }
+        current.put(row, raster);
+        g.drawImage(raster.image, 0, y, null);
+    }
+
+    private static boolean hasKey(Raster raster, int[] key, int length) {
+        if (raster.key.length != length) return false;
+
+        for (int i = 0; i < length; ++i) {
+            if (raster.key[i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    private void rasterize(Raster raster, int[] key, int length) {
+        Arrays.fill(raster.pixels, 0);
+        for (int i = 0, x = 0; i < length; ++i, x += front.width) {
+            front.rasterizeCharacter(raster.pixels, width, x, 0, (char) (key[i] & 255), key[i] >>> 8);
+        }
+        raster.key = Arrays.copyOf(key, length);
+    }
+
+    /**
+     * Forgets the rows that were not painted since begin.
+     */
+    void end() {
+        HashMap<Integer, Raster> swap = previous;
+        previous = current;
+        current = swap;
+        current.clear();
+    }
+}
@@ -0,0 +1,118 @@
+package freditor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Provides the fronts 2 to 12 offered by Fronts, scaled down from the original glyph sheet.
+ * Scaling runs in parallel on the common fork/join pool, and the results are cached on disk,
+ * keyed by a checksum of the original, so later launches neither scale nor decode the PNG.
+ * <p>
+ * Lambdas live in this class rather than in Fronts, whose static initializer waits for them,
+ * because worker threads calling back into a class under initialization would deadlock.
+ */
+final class ScaledFronts {
+    private ScaledFronts() {
+    }
+
+    private static final String ORIGINAL = "/font.png";
+    private static final String CACHE = System.getProperty("user.home") + File.separator + ".freditor" + File.separator + "fronts.bin";
+    private static final int MAGIC = 0x46524e54; // FRNT
+    private static final int FIRST = 2;
+    private static final int LAST = 12;
+
+    static Front[] load() {
+        final long checksum = checksumOfOriginal();
+        Front[] fronts = readCache(checksum);
+        if (fronts == null) {
+            fronts = scale(Front.read(ORIGINAL));
+            writeCacheInBackground(checksum, fronts);
+        }
+        return fronts;
+    }
+
+    private static long checksumOfOriginal() {
+        try (InputStream in = ScaledFronts.class.getResourceAsStream(ORIGINAL)) {
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[1 << 16];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                crc.update(buffer, 0, n);
+            }
+            return crc.getValue();
+        } catch (IOException ex) {
+            // There is no sensible way to recover from required but absent resources
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Front[] scale(Front original) {
+        CompletableFuture<Front> eleven = CompletableFuture.supplyAsync(() -> original.thirdScaled(11).halfScaled().halfScaled());
+        CompletableFuture<Front> ten = CompletableFuture.supplyAsync(() -> original.thirdScaled(5).halfScaled());
+        CompletableFuture<Front> nine = CompletableFuture.supplyAsync(() -> original.scaled(3).halfScaled().halfScaled());
+        CompletableFuture<Front> eight = CompletableFuture.supplyAsync(() -> original.thirdScaled(2));
+        CompletableFuture<Front> seven = CompletableFuture.supplyAsync(() -> original.thirdScaled(7).halfScaled().halfScaled());
+        CompletableFuture<Front> six = CompletableFuture.supplyAsync(original::halfScaled);
+        CompletableFuture<Front> five = ten.thenApplyAsync(Front::halfScaled);
+        CompletableFuture<Front> four = eight.thenApplyAsync(Front::halfScaled);
+        CompletableFuture<Front> three = six.thenApplyAsync(Front::halfScaled);
+        CompletableFuture<Front> two = four.thenApplyAsync(Front::halfScaled);
+
+        Front[] fronts = new Front[LAST + 1];
+        fronts[12] = original;
+        fronts[11] = eleven.join();
+        fronts[10] = ten.join();
+        fronts[9] = nine.join();
+        fronts[8] = eight.join();
+        fronts[7] = seven.join();
+        fronts[6] = six.join();
+        fronts[5] = five.join();
+        fronts[4] = four.join();
+        fronts[3] = three.join();
+        fronts[2] = two.join();
+        return fronts;
+    }
+
+    private static Front[] readCache(long checksum) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(CACHE)))) {
+            if (in.readInt() != MAGIC || in.readLong() != checksum) return null;
+
+            Front[] fronts = new Front[LAST + 1];
+            for (int i = FIRST; i <= LAST; ++i) {
+                fronts[i] = Front.readFrom(in);
+            }
+            return fronts;
+        } catch (IOException absentOrCorrupt) {
+            return null;
+        }
+    }
+
+    private static void writeCacheInBackground(long checksum, Front[] fronts) {
+        Thread writer = new Thread(() -> writeCache(checksum, fronts), "front cache writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void writeCache(long checksum, Front[] fronts) {
+        try {
+            Path cache = Paths.get(CACHE);
+            Files.createDirectories(cache.getParent());
+            // written next to the cache and then moved, so readers never see a partial file
+            Path temporary = Files.createTempFile(cache.getParent(), "fronts", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(checksum);
+                for (int i = FIRST; i <= LAST; ++i) {
+                    fronts[i].writeTo(out);
+                }
+            }
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package freditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only pack file of text versions, addressed by their content hashes.
+ * Most versions are stored as the difference to their predecessor,
+ * but every CHAIN_LENGTH-th version is stored in full,
+ * so reading any version replays at most CHAIN_LENGTH - 1 differences.
+ * <p>
+ * Each record consists of a header (kind, hash length, hash, text length, payload length)
+ * followed by the payload, which is either the full text or
+ * the lengths of the common prefix and suffix plus the differing middle.
+ * An incomplete record at the end, left behind by a crash, is discarded when the file is opened.
+ */
+public final class SnapshotStore {
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final int CHAIN_LENGTH = 64;
+
+    private static final class Record {
+        final long offset;
+        final byte kind;
+
+        Record(long offset, byte kind) {
+            this.offset = offset;
+            this.kind = kind;
+        }
+    }
+
+    public final String pathname;
+
+    // guarded by this, opened lazily
+    private FileChannel channel;
+    private final List<Record> records = new ArrayList<>();
+    private final HashMap<String, Integer> index = new HashMap<>();
+    private final List<String> hashes = new ArrayList<>();
+    private CharZipper latest;
+
+    public SnapshotStore(String pathname) {
+        this.pathname = pathname;
+    }
+
+    private void open() throws IOException {
+        if (channel != null) return;
+
+        channel = FileChannel.open(Paths.get(pathname), READ, WRITE, CREATE);
+        final long size = channel.size();
+        long offset = 0;
+        while (offset < size) {
+            ByteBuffer prefix = read(offset, 2);
+            if (prefix == null) break;
+            final byte kind = prefix.get();
+            final int hashLength = prefix.get() & 255;
+            ByteBuffer header = read(offset + 2, hashLength + 8);
+            if (header == null) break;
+            byte[] hash = new byte[hashLength];
+            header.get(hash);
+            header.getInt(); // text length
+            final long end = offset + 2 + hashLength + 8 + header.getInt();
+            if (end > size) break;
+
+            add(new String(hash, StandardCharsets.ISO_8859_1), new Record(offset, kind));
+            offset = end;
+        }
+        channel.truncate(offset);
+    }
+
+    private void add(String hash, Record record) {
+        index.put(hash, records.size());
+        records.add(record);
+        hashes.add(hash);
+    }
+
+    public synchronized boolean contains(String hash) throws IOException {
+        open();
+        return index.containsKey(hash);
+    }
+
+    /**
+     * Returns the hashes of all stored versions, from oldest to newest.
+     */
+    public synchronized List<String> hashes() throws IOException {
+        open();
+        return new ArrayList<>(hashes);
+    }
+
+    /**
+     * Appends the text unless a version with the same hash is already stored.
+     * A difference is found by comparing the text with its predecessor,
+     * skipping the parts both zippers share, and only the differing middle is copied;
+     * every CHAIN_LENGTH-th version is copied in full.
+     */
+    public synchronized boolean put(String hash, CharZipper text) throws IOException {
+        open();
+        if (index.containsKey(hash)) return false;
+
+        final boolean full = records.size() % CHAIN_LENGTH == 0;
+        ByteBuffer payload;
+        byte kind;
+        if (full) {
+            kind = FULL;
+            payload = ByteBuffer.wrap(text.toByteArray());
+        } else {
+            kind = DELTA;
+            payload = delta(latest(), text);
+        }
+
+        byte[] hashBytes = hash.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer header = ByteBuffer.allocate(2 + hashBytes.length + 8);
+        header.put(kind).put((byte) hashBytes.length).put(hashBytes);
+        header.putInt(text.length()).putInt(payload.remaining());
+        header.flip();
+
+        final long offset = channel.size();
+        long position = offset;
+        for (ByteBuffer buffer : new ByteBuffer[]{header, payload}) {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+        add(hash, new Record(offset, kind));
+        latest = text;
+        return true;
+    }
+
+    private static ByteBuffer delta(CharZipper previous, CharZipper text) {
+        final int max = Math.min(previous.length(), text.length());
+        final int prefix = text.commonPrefixLength(previous);
+        final int suffix = text.commonSuffixLength(previous, max - prefix);
+        final int middle = text.length() - prefix - suffix;
+        ByteBuffer payload = ByteBuffer.allocate(8 + middle);
+        payload.putInt(prefix).putInt(suffix);
+        text.copyIntoArray(prefix, prefix + middle, payload.array(), 8);
+        payload.rewind();
+        return payload;
+    }
+
+    private CharZipper latest() throws IOException {
+        if (latest == null) {
+            latest = CharZipper.of(read(records.size() - 1));
+        }
+        return latest;
+    }
+
+    /**
+     * Returns the version with the given hash, or null if there is none.
+     */
+    public synchronized byte[] get(String hash) throws IOException {
+        open();
+        Integer number = index.get(hash);
+        return number == null ? null : read(number);
+    }
+
+    private byte[] read(int number) throws IOException {
+        int base = number;
+        while (records.get(base).kind != FULL) {
+            --base;
+        }
+        byte[] text = null;
+        for (int i = base; i <= number; ++i) {
+            text = apply(text, records.get(i));
+        }
+        return text;
+    }
+
+    private byte[] apply(byte[] previous, Record record) throws IOException {
+        final int hashLength = read(record.offset + 1, 1).get() & 255;
+        ByteBuffer lengths = read(record.offset + 2 + hashLength, 8);
+        final int textLength = lengths.getInt();
+        final int payloadLength = lengths.getInt();
+        ByteBuffer payload = read(record.offset + 2 + hashLength + 8, payloadLength);
+        if (payload == null) throw new IOException(pathname + " is truncated");
+
+        byte[] text = new byte[textLength];
+        if (record.kind == FULL) {
+            payload.get(text);
+        } else {
+            final int prefix = payload.getInt();
+            final int suffix = payload.getInt();
+            System.arraycopy(previous, 0, text, 0, prefix);
+            payload.get(text, prefix, textLength - prefix - suffix);
+            System.arraycopy(previous, previous.length - suffix, text, textLength - suffix, suffix);
+        }
+        return text;
+    }
+
+    // Returns null if the file ends before length bytes could be read
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -82,4 +82,8 @@ public final class IntStack {
         }
         return left;
     }
+
+    public int[] toArray() {
+        return Arrays.copyOf(buffer, size);
+    }
 }
@@ -0,0 +1,35 @@
+package freditor.persistent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds bytes eight at a time, by testing all bytes of a long word at once (SWAR).
+ */
+public final class ByteSearch {
+    private ByteSearch() {
+    }
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    /**
+     * Returns the index of the first b from start (inclusive) to end (exclusive), or -1.
+     * The buffer must be in little-endian order.
+     */
+    public static int indexOf(ByteBuffer buffer, byte b, int start, int end) {
+        assert buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        final long pattern = ONES * (b & 255);
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            long x = buffer.getLong(i) ^ pattern;
+            // the lowest high bit marks the first zero byte; higher ones may be false positives
+            long zeros = (x - ONES) & ~x & HIGHS;
+            if (zeros != 0) return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+        }
+        for (; i < end; ++i) {
+            if (buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+}
@@ -1,20 +1,42 @@
 package freditor.persistent;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
+/**
+ * Persistent vector of bytes: a 32-ary trie of leaves, plus a tail of up to 32 bytes.
+ * Vectors built by pushing are regular: every leaf holds 32 bytes, so an index selects
+ * the child on each level by 5 of its bits. Concatenation and slicing relax that structure,
+ * as in relaxed radix balanced trees: leaves may hold fewer bytes, and a node whose children
+ * are not all full carries the cumulative sizes of its children as its last element.
+ */
 public final class ByteVector {
     private final Object root;
+    private final int shift;
+    // the bytes before the tail; the trie may hold more, which take leaves behind
+    private final int trieSize;
     private final byte[] tail;
     private final int size;
+    private final boolean regular;
 
-    private ByteVector(Object root, byte[] tail, int size) {
-        assert size <= 32 || root != null;
+    ByteVector(Object root, byte[] tail, int size) {
+        this(root, shift(size), size == 0 ? 0 : ((size - 1) >>> 5) << 5, tail, size, true);
+    }
+
+    ByteVector(Object root, int shift, int trieSize, byte[] tail, int size, boolean regular) {
+        assert trieSize == 0 || root != null;
+        assert regular || trieSize > 0;
+        assert trieSize < size || size == 0;
         assert tail.length == 32;
 
         this.root = root;
+        this.shift = shift;
+        this.trieSize = trieSize;
         this.tail = tail;
         this.size = size;
+        this.regular = regular;
     }
 
     public static final ByteVector EMPTY = new ByteVector(null, "                                ".getBytes(), 0);
@@ -57,26 +79,114 @@ public final class ByteVector {
     }
 
     public void copyIntoArray(byte[] bytes, int offset) {
-        int index = 0;
-        if (size > 32) {
-            index = copyIntoArray(root, 0, bytes, offset);
+        if (trieSize > 0) {
+            copyIntoArray(root, shift, trieSize, bytes, offset);
+        }
+        System.arraycopy(tail, 0, bytes, offset + trieSize, size - trieSize);
+    }
+
+    // Copies at most the first count bytes of the node, returns how many it copied
+    private static int copyIntoArray(Object node, int shift, int count, byte[] bytes, int offset) {
+        if (shift == 0) {
+            byte[] leaf = (byte[]) node;
+            final int n = Math.min(count, leaf.length);
+            System.arraycopy(leaf, 0, bytes, offset, n);
+            return n;
+        }
+        int copied = 0;
+        for (Object child : (Object[]) node) {
+            if (copied == count || !(child instanceof Object[] || child instanceof byte[])) break;
+            copied += copyIntoArray(child, shift - 5, count - copied, bytes, offset + copied);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the bytes from start (inclusive) to end (exclusive),
+     * descending into the trie only once per leaf.
+     */
+    public void copyIntoArray(int start, int end, byte[] bytes, int offset) {
+        Cursor cursor = new Cursor();
+        while (start < end) {
+            cursor.seek(start);
+            int stop = Math.min(end, cursor.leafEnd);
+            System.arraycopy(cursor.leaf, start - cursor.leafStart, bytes, offset, stop - start);
+            offset += stop - start;
+            start = stop;
         }
-        System.arraycopy(tail, 0, bytes, offset + index, size - index);
     }
 
-    private int copyIntoArray(Object root, int index, byte[] bytes, int offset) {
-        if (root instanceof Object[]) {
-            for (Object r : (Object[]) root) {
-                if (index + 32 >= size) break;
-                index = copyIntoArray(r, index, bytes, offset);
+    /**
+     * Returns a read-only view of the bytes from start up to the end of its leaf,
+     * but at most up to end, without copying them.
+     */
+    public ByteBuffer leafBuffer(int start, int end) {
+        Cursor cursor = new Cursor();
+        cursor.seek(start);
+        int stop = Math.min(end, cursor.leafEnd);
+        return ByteBuffer.wrap(cursor.leaf, start - cursor.leafStart, stop - start).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the index of the first b at or after from, or -1,
+     * descending into the trie only once per leaf.
+     */
+    public int indexOf(byte b, int from) {
+        Cursor cursor = new Cursor();
+        for (int start = from; start < size; ) {
+            cursor.seek(start);
+            final int stop = Math.min(size, cursor.leafEnd);
+            final int offset = cursor.leafStart;
+            ByteBuffer leaf = ByteBuffer.wrap(cursor.leaf).order(ByteOrder.LITTLE_ENDIAN);
+            int found = ByteSearch.indexOf(leaf, b, start - offset, stop - offset);
+            if (found >= 0) return offset + found;
+            start = stop;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads bytes at nearby indices in either direction,
+     * descending into the trie only when crossing into another leaf.
+     */
+    public final class Cursor {
+        private byte[] leaf = tail;
+        // the leaf holds the bytes from leafStart (inclusive) to leafEnd (exclusive), none before the first read
+        private int leafStart = 0;
+        private int leafEnd = 0;
+
+        public byte byteAt(int index) {
+            if (index < leafStart || index >= leafEnd) {
+                seek(index);
             }
-            return index;
-        } else {
-            System.arraycopy(root, 0, bytes, offset + index, 32);
-            return index + 32;
+            return leaf[index - leafStart];
+        }
+
+        private void seek(int index) {
+            if (index >= trieSize) {
+                leaf = tail;
+                leafStart = trieSize;
+                leafEnd = size;
+                return;
+            }
+            Object node = root;
+            int local = index;
+            for (int shift = ByteVector.this.shift; shift > 0; shift -= 5) {
+                Object[] children = (Object[]) node;
+                int child = childIndex(children, shift, local);
+                local -= childStart(children, shift, child);
+                node = children[child];
+            }
+            leaf = (byte[]) node;
+            leafStart = index - local;
+            leafEnd = leafStart + leaf.length;
         }
     }
 
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
     public boolean isEmpty() {
         return size == 0;
     }
@@ -85,16 +195,190 @@ public final class ByteVector {
         return size;
     }
 
+    /**
+     * Estimates the heap bytes retained by this version but not by the other one.
+     */
+    public long bytesNotSharedWith(ByteVector other) {
+        long bytes = regular && other.regular
+                ? Sharing.unsharedBytes(root, shift, other.root, other.shift)
+                : unsharedBytes(root, shift, 0, other);
+        if (tail != other.tail) {
+            bytes += Sharing.bytesOfNode(tail);
+        }
+        return bytes;
+    }
+
+    // Sums the nodes of a trie that the other vector does not hold at the same position;
+    // concatenation and slicing may move a shared node to another index in its parent
+    private static long unsharedBytes(Object node, int shift, int start, ByteVector other) {
+        if (node == null || other.holds(node, shift, start)) return 0;
+
+        long bytes = Sharing.bytesOfNode(node);
+        if (shift > 0) {
+            Object[] children = (Object[]) node;
+            int[] sizes = sizesOf(children);
+            if (sizes != null) {
+                bytes += Sharing.bytesOfNode(sizes);
+            }
+            for (int i = 0, n = childCount(children); i < n; ++i) {
+                bytes += unsharedBytes(children[i], shift - 5, start + childStart(children, shift, i), other);
+            }
+        }
+        return bytes;
+    }
+
+    private boolean holds(Object node, int shift, int start) {
+        if (start >= trieSize || shift > this.shift) return false;
+
+        Object current = root;
+        int local = start;
+        for (int s = this.shift; s > shift; s -= 5) {
+            Object[] children = (Object[]) current;
+            int child = childIndex(children, s, local);
+            local -= childStart(children, s, child);
+            current = children[child];
+        }
+        return current == node && local == 0;
+    }
+
+    /**
+     * Returns the length of the longest common prefix of both versions.
+     * Subtrees at the same position that both versions share are skipped without comparing their bytes,
+     * so comparing two versions that differ by a few path copies costs O(log n) per difference.
+     */
+    public int commonPrefixLength(ByteVector other) {
+        final int limit = Math.min(size, other.size);
+        Cursor these = new Cursor();
+        Cursor those = other.new Cursor();
+        int i = 0;
+        while (i < limit) {
+            final int shared = sharedUntil(i, other);
+            if (shared > i) {
+                i = Math.min(shared, limit);
+            } else {
+                these.seek(i);
+                those.seek(i);
+                final int stop = Math.min(limit, Math.min(these.leafEnd, those.leafEnd));
+                if (these.leaf != those.leaf || these.leafStart != those.leafStart) {
+                    for (; i < stop; ++i) {
+                        if (these.leaf[i - these.leafStart] != those.leaf[i - those.leafStart]) return i;
+                    }
+                }
+                i = stop;
+            }
+        }
+        return limit;
+    }
+
+    // Returns the end of the largest node containing index that both tries share at the same position,
+    // or index if there is none. After take, a trie may use only a part of a node it shares with a larger trie.
+    private int sharedUntil(int index, ByteVector other) {
+        final int trieSize = Math.min(this.trieSize, other.trieSize);
+        if (index >= trieSize) return index;
+
+        Object a = root;
+        Object b = other.root;
+        int shiftA = shift;
+        int shiftB = other.shift;
+        int startA = 0;
+        int startB = 0;
+        while (true) {
+            if (a == b && shiftA == shiftB && startA == startB) {
+                return (int) Math.min((long) startA + nodeSize(a, shiftA), trieSize);
+            }
+            final int level = Math.max(shiftA, shiftB);
+            if (level == 0) return index;
+
+            if (shiftA == level) {
+                Object[] children = (Object[]) a;
+                int child = childIndex(children, shiftA, index - startA);
+                startA += childStart(children, shiftA, child);
+                a = children[child];
+                shiftA -= 5;
+            }
+            if (shiftB == level) {
+                Object[] children = (Object[]) b;
+                int child = childIndex(children, shiftB, index - startB);
+                startB += childStart(children, shiftB, child);
+                b = children[child];
+                shiftB -= 5;
+            }
+        }
+    }
+
     public byte top() {
         if (isEmpty()) throw new IllegalStateException("top on empty vector");
 
-        return tail[(size - 1) & 31];
+        return tail[size - 1 - trieSize];
     }
 
     public byte byteAt(int index) {
-        return tailOrLeafContaining(index)[index & 31];
+        if (index >= trieSize) return tail[index - trieSize];
+
+        Object node = root;
+        int local = index;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            Object[] children = (Object[]) node;
+            int child = childIndex(children, shift, local);
+            local -= childStart(children, shift, child);
+            node = children[child];
+        }
+        return ((byte[]) node)[local];
+    }
+
+    // The size table of a relaxed node, or null if the node is regular
+    private static int[] sizesOf(Object[] node) {
+        Object last = node[node.length - 1];
+        return last instanceof int[] ? (int[]) last : null;
+    }
+
+    private static int childCount(Object[] node) {
+        int n = node.length;
+        if (node[n - 1] instanceof int[]) return n - 1;
+
+        while (node[n - 1] == null) {
+            --n;
+        }
+        return n;
     }
 
+    // The child of the node containing index, relative to the start of the node.
+    // A child holds at most 1 << shift bytes, so it cannot lie before the regular guess.
+    private static int childIndex(Object[] node, int shift, int index) {
+        int child = (index >>> shift) & 31;
+        int[] sizes = sizesOf(node);
+        if (sizes != null) {
+            while (sizes[child] <= index) {
+                ++child;
+            }
+        }
+        return child;
+    }
+
+    private static int childStart(Object[] node, int shift, int child) {
+        int[] sizes = sizesOf(node);
+        if (sizes == null) return child << shift;
+
+        return child == 0 ? 0 : sizes[child - 1];
+    }
+
+    private static int childEnd(Object[] node, int shift, int child) {
+        int[] sizes = sizesOf(node);
+        if (sizes != null) return sizes[child];
+
+        if (child < childCount(node) - 1) return (child + 1) << shift;
+
+        return (child << shift) + nodeSize(node[child], shift - 5);
+    }
+
+    private static int nodeSize(Object node, int shift) {
+        if (shift == 0) return ((byte[]) node).length;
+
+        Object[] children = (Object[]) node;
+        return childEnd(children, shift, childCount(children) - 1);
+    }
+
+    // Only valid for regular vectors, whose leaves all start at multiples of 32
     private byte[] tailOrLeafContaining(int index) {
         if ((index >>> 5) >= (size - 1) >>> 5) {
             return tail;
@@ -105,19 +389,27 @@ public final class ByteVector {
 
     private byte[] leafContaining(int index) {
         Object root = this.root;
-        for (int shift = shift(size); shift > 0; shift -= 5) {
+        for (int shift = this.shift; shift > 0; shift -= 5) {
             root = ((Object[]) root)[(index >>> shift) & 31];
         }
         return (byte[]) root;
     }
 
-    private static int shift(int size) {
+    static int shift(int size) {
         int maxTreeIndex = size - 33;
         int leadingZeros = Integer.numberOfLeadingZeros(maxTreeIndex);
         return "\0\36\31\31\31\31\31\24\24\24\24\24\17\17\17\17\17\12\12\12\12\12\5\5\5\5\5\0\0\0\0\0\0".charAt(leadingZeros);
     }
 
     public ByteVector push(byte x) {
+        if (!regular) {
+            final int tailIndex = size - trieSize;
+            if (tailIndex < 32) {
+                return new ByteVector(root, shift, trieSize, tailWith(tailIndex, x), size + 1, false);
+            }
+            Trie trie = trimmedTrie().concat(new Trie(tail, 0));
+            return new ByteVector(trie.root, trie.shift, size, tailOf(x), size + 1, false);
+        }
         final int tailIndex = tailIndex();
         if (tailIndex > 0 || isEmpty()) {
             // same leaf count
@@ -131,6 +423,20 @@ public final class ByteVector {
         }
     }
 
+    /**
+     * Equivalent to pushing the given bytes one by one,
+     * but allocates only one new leaf per 32 bytes.
+     */
+    public ByteVector pushAll(byte[] bytes, int offset, int length) {
+        if (length == 0) return this;
+
+        return asTransient().pushAll(bytes, offset, length).persistent();
+    }
+
+    public TransientByteVector asTransient() {
+        return regular ? new TransientByteVector(root, tail, size) : new TransientByteVector(this);
+    }
+
     private int tailIndex() {
         return size & 31;
     }
@@ -174,6 +480,8 @@ public final class ByteVector {
     public ByteVector pop() {
         if (isEmpty()) throw new IllegalStateException("pop on empty vector");
 
+        if (!regular) return take(size - 1);
+
         if (tailIndex() != 1) {
             // same leaf count
             return new ByteVector(root, tail, size - 1);
@@ -186,7 +494,7 @@ public final class ByteVector {
         }
     }
 
-    private static boolean isPowerOf32(int x) {
+    static boolean isPowerOf32(int x) {
         return (x & (x - 1)) == 0 && (0b01000010000100001000010000100001 << Integer.numberOfLeadingZeros(x)) < 0;
         //     zero or power of 2      32^6 32^5 32^4 32^3 32^2 32^1 32^0
     }
@@ -196,50 +504,275 @@ public final class ByteVector {
             return EMPTY;
         } else if (n == size) {
             return this;
-        } else {
+        } else if (regular) {
             Object root = this.root;
-            for (int shift = shift(size), targetShift = shift(n); shift > targetShift; shift -= 5) {
+            for (int shift = this.shift, targetShift = shift(n); shift > targetShift; shift -= 5) {
                 root = ((Object[]) root)[0];
             }
             return new ByteVector(root, tailOrLeafContaining(n - 1), n);
+        } else if (n > trieSize) {
+            return new ByteVector(root, shift, trieSize, tail, n, false);
+        } else {
+            // the leaf containing the last byte becomes the tail
+            Cursor cursor = new Cursor();
+            cursor.seek(n - 1);
+            byte[] tail = cursor.leaf.length == 32 ? cursor.leaf : Arrays.copyOf(cursor.leaf, 32);
+            final int trieSize = cursor.leafStart;
+            if (trieSize == 0) return new ByteVector(null, tail, n);
+
+            Object root = this.root;
+            int shift = this.shift;
+            while (shift > 0 && trieSize <= childEnd((Object[]) root, shift, 0)) {
+                root = ((Object[]) root)[0];
+                shift -= 5;
+            }
+            return new ByteVector(root, shift, trieSize, tail, n, false);
         }
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        return obj == this || obj instanceof ByteVector && equals((ByteVector) obj);
+    public ByteVector drop(int n) {
+        return slice(n, size);
     }
 
-    boolean equals(ByteVector that) {
-        if (this.size != that.size) return false;
+    /**
+     * Returns the bytes from start (inclusive) to end (exclusive) in O(log n),
+     * sharing all but the leaves and nodes on both edges of the slice.
+     */
+    public ByteVector slice(int start, int end) {
+        if (start <= 0) return take(end);
+        if (start >= end) return EMPTY;
+
+        ByteVector prefix = take(end);
+        if (start >= prefix.trieSize) {
+            final int offset = start - prefix.trieSize;
+            return new ByteVector(null, Arrays.copyOfRange(prefix.tail, offset, offset + 32), end - start);
+        }
+        Trie trie = prefix.trimmedTrie();
+        Object root = trimLeft(trie.root, trie.shift, start);
+        int shift = trie.shift;
+        while (shift > 0 && childCount((Object[]) root) == 1) {
+            root = ((Object[]) root)[0];
+            shift -= 5;
+        }
+        return new ByteVector(root, shift, prefix.trieSize - start, prefix.tail, end - start, false);
+    }
 
-        int i;
-        for (i = 0; i + 32 < size; i += 32) {
-            if (!Arrays.equals(this.leafContaining(i), that.leafContaining(i))) return false;
+    /**
+     * Returns the bytes of this vector followed by the bytes of that vector in O(log n),
+     * sharing all but the nodes along the seam, where adjacent leaves are merged if they fit into one.
+     */
+    public ByteVector concat(ByteVector that) {
+        if (that.isEmpty()) return this;
+        if (this.isEmpty()) return that;
+
+        if (that.size <= 32) {
+            ByteVector result = this;
+            for (byte b : that.toArray()) {
+                result = result.push(b);
+            }
+            return result;
+        }
+        Trie left = new Trie(Arrays.copyOf(tail, size - trieSize), 0);
+        if (trieSize > 0) {
+            left = trimmedTrie().concat(left);
         }
+        Trie trie = left.concat(that.trimmedTrie());
+        return new ByteVector(trie.root, trie.shift, size + that.trieSize, that.tail, size + that.size, false);
+    }
 
-        for (; i < size; ++i) {
-            if (this.tail[i & 31] != that.tail[i & 31]) return false;
+    // A trie without tail, as an intermediate result of concatenation
+    private static final class Trie {
+        final Object root;
+        final int shift;
+
+        Trie(Object root, int shift) {
+            this.root = root;
+            this.shift = shift;
         }
 
-        return true;
+        // The first count bytes of the given trie, without the nodes beyond them that take leaves behind
+        static Trie trimmed(Object root, int shift, int count) {
+            root = trimRight(root, shift, count);
+            while (shift > 0 && childCount((Object[]) root) == 1) {
+                root = ((Object[]) root)[0];
+                shift -= 5;
+            }
+            return new Trie(root, shift);
+        }
+
+        Trie concat(Trie that) {
+            Object[] nodes = ByteVector.concat(this.root, this.shift, that.root, that.shift);
+            final int shift = Math.max(this.shift, that.shift);
+            if (nodes.length == 1) return new Trie(nodes[0], shift);
+
+            return new Trie(node(nodes, 0, 2, shift + 5), shift + 5);
+        }
     }
 
-    @Override
-    public int hashCode() {
-        int hash = 0;
+    private Trie trimmedTrie() {
+        return Trie.trimmed(root, shift, trieSize);
+    }
+
+    private static Object trimRight(Object node, int shift, int count) {
+        if (shift == 0) {
+            byte[] leaf = (byte[]) node;
+            return count == leaf.length ? leaf : Arrays.copyOf(leaf, count);
+        }
+        Object[] children = (Object[]) node;
+        final int last = childIndex(children, shift, count - 1);
+        final int start = childStart(children, shift, last);
+        Object child = trimRight(children[last], shift - 5, count - start);
+        if (child == children[last] && last == childCount(children) - 1) return node;
+
+        int[] sizes = sizesOf(children);
+        Object[] trimmed = Arrays.copyOf(children, sizes == null ? last + 1 : last + 2);
+        trimmed[last] = child;
+        if (sizes != null) {
+            int[] trimmedSizes = Arrays.copyOf(sizes, last + 1);
+            trimmedSizes[last] = count;
+            trimmed[last + 1] = trimmedSizes;
+        }
+        return trimmed;
+    }
+
+    private static Object trimLeft(Object node, int shift, int start) {
+        if (start == 0) return node;
+
+        if (shift == 0) {
+            byte[] leaf = (byte[]) node;
+            return Arrays.copyOfRange(leaf, start, leaf.length);
+        }
+        Object[] children = (Object[]) node;
+        final int first = childIndex(children, shift, start);
+        final int count = childCount(children) - first;
+        Object[] trimmed = new Object[count + 1];
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; ++i) {
+            trimmed[i] = children[first + i];
+            sizes[i] = childEnd(children, shift, first + i) - start;
+        }
+        trimmed[0] = trimLeft(children[first], shift - 5, start - childStart(children, shift, first));
+        trimmed[count] = sizes;
+        return trimmed;
+    }
+
+    // Concatenates two tries along the right edge of the left one and the left edge of the right one,
+    // returns one or two nodes at the height of the taller trie
+    private static Object[] concat(Object left, int leftShift, Object right, int rightShift) {
+        if (leftShift > rightShift) {
+            Object[] children = (Object[]) left;
+            final int count = childCount(children);
+            Object[] seam = concat(children[count - 1], leftShift - 5, right, rightShift);
+            return join(children, count - 1, seam, children, count, count, leftShift);
+        }
+        if (leftShift < rightShift) {
+            Object[] children = (Object[]) right;
+            Object[] seam = concat(left, leftShift, children[0], rightShift - 5);
+            return join(children, 0, seam, children, 1, childCount(children), rightShift);
+        }
+        if (leftShift == 0) {
+            byte[] a = (byte[]) left;
+            byte[] b = (byte[]) right;
+            if (a.length + b.length > 32) return new Object[]{a, b};
+
+            byte[] merged = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, merged, a.length, b.length);
+            return new Object[]{merged};
+        }
+        Object[] l = (Object[]) left;
+        Object[] r = (Object[]) right;
+        final int count = childCount(l);
+        Object[] seam = concat(l[count - 1], leftShift - 5, r[0], rightShift - 5);
+        return join(l, count - 1, seam, r, 1, childCount(r), leftShift);
+    }
 
-        int i;
-        for (i = 0; i + 32 < size; i += 32) {
-            for (byte b : leafContaining(i)) {
-                hash = hash * 31 + b;
+    // Puts the first leftCount children of left, the seam and the given children of right
+    // under one node, or under two if they do not fit into one
+    private static Object[] join(Object[] left, int leftCount, Object[] seam, Object[] right, int rightFrom, int rightTo, int shift) {
+        Object[] children = new Object[leftCount + seam.length + rightTo - rightFrom];
+        System.arraycopy(left, 0, children, 0, leftCount);
+        System.arraycopy(seam, 0, children, leftCount, seam.length);
+        System.arraycopy(right, rightFrom, children, leftCount + seam.length, rightTo - rightFrom);
+        children = rebalanced(children, shift);
+        if (children.length <= 32) return new Object[]{node(children, 0, children.length, shift)};
+
+        return new Object[]{node(children, 0, 32, shift), node(children, 32, children.length, shift)};
+    }
+
+    // Repacks the contents of the children into as few children as possible if that saves more than two,
+    // which keeps nodes along seams from thinning out and the trie from growing taller after many concatenations
+    private static Object[] rebalanced(Object[] children, int shift) {
+        final int childShift = shift - 5;
+        int total = 0;
+        for (Object child : children) {
+            total += childShift == 0 ? ((byte[]) child).length : childCount((Object[]) child);
+        }
+        final int needed = (total + 31) >>> 5;
+        if (children.length <= needed + 2) return children;
+
+        Object[] repacked = new Object[needed];
+        if (childShift == 0) {
+            byte[] bytes = new byte[total];
+            int k = 0;
+            for (Object child : children) {
+                byte[] leaf = (byte[]) child;
+                System.arraycopy(leaf, 0, bytes, k, leaf.length);
+                k += leaf.length;
+            }
+            for (int i = 0; i < needed; ++i) {
+                repacked[i] = Arrays.copyOfRange(bytes, i << 5, Math.min(total, (i + 1) << 5));
+            }
+        } else {
+            Object[] grandchildren = new Object[total];
+            int k = 0;
+            for (Object child : children) {
+                Object[] node = (Object[]) child;
+                final int n = childCount(node);
+                System.arraycopy(node, 0, grandchildren, k, n);
+                k += n;
+            }
+            for (int i = 0; i < needed; ++i) {
+                repacked[i] = node(grandchildren, i << 5, Math.min(total, (i + 1) << 5), childShift);
             }
         }
+        return repacked;
+    }
 
-        for (; i < size; ++i) {
-            hash = hash * 31 + tail[i & 31];
+    // A node over the given children, regular if all but the last one are full
+    private static Object[] node(Object[] children, int from, int to, int shift) {
+        final int count = to - from;
+        int[] sizes = new int[count];
+        boolean regular = true;
+        int total = 0;
+        for (int i = 0; i < count; ++i) {
+            int childSize = nodeSize(children[from + i], shift - 5);
+            regular &= childSize == 1 << shift || i == count - 1;
+            total += childSize;
+            sizes[i] = total;
         }
+        Object[] node = Arrays.copyOfRange(children, from, regular ? to : to + 1);
+        if (!regular) {
+            node[count] = sizes;
+        }
+        return node;
+    }
 
+    @Override
+    public boolean equals(Object obj) {
+        return obj == this || obj instanceof ByteVector && equals((ByteVector) obj);
+    }
+
+    boolean equals(ByteVector that) {
+        return this.size == that.size && commonPrefixLength(that) == size;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        Cursor cursor = new Cursor();
+        for (int i = 0; i < size; ++i) {
+            hash = hash * 31 + cursor.byteAt(i);
+        }
         return hash;
     }
 
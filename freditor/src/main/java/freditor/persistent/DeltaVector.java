@@ -0,0 +1,354 @@
+package freditor.persistent;
+
+import java.util.Arrays;
+
+/**
+ * Persistent vector of small deltas, typically -1, 0 and +1.
+ * Every node summarizes the sum of its deltas and the minimum and maximum of the running sums,
+ * so the first or last position where the running sum crosses some threshold is found in O(log n).
+ */
+public final class DeltaVector {
+    private static final class Node {
+        final Object items; // byte[] in leaves, Node[] otherwise
+        final int size;
+        final int sum;
+        // of the running sums after each delta
+        final int min;
+        final int max;
+
+        Node(byte[] deltas) {
+            int sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (byte delta : deltas) {
+                sum += delta;
+                min = Math.min(min, sum);
+                max = Math.max(max, sum);
+            }
+            this.items = deltas;
+            this.size = deltas.length;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        Node(Node[] children) {
+            int size = 0;
+            int sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (Node child : children) {
+                size += child.size;
+                min = Math.min(min, sum + child.min);
+                max = Math.max(max, sum + child.max);
+                sum += child.sum;
+            }
+            this.items = children;
+            this.size = size;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root;
+    // 0 if the root is a leaf
+    private final int shift;
+
+    private DeltaVector(Node root, int shift) {
+        this.root = root;
+        this.shift = shift;
+    }
+
+    public static final DeltaVector EMPTY = new DeltaVector(null, 0);
+
+    public static DeltaVector of(byte... deltas) {
+        return EMPTY.pushAll(deltas, 0, deltas.length);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    /**
+     * Estimates the heap bytes retained by this version but not by the other one.
+     */
+    public long bytesNotSharedWith(DeltaVector other) {
+        return bytesNotSharedWith(root, shift, other.root, other.shift);
+    }
+
+    // object header, 4 fields and the items array header
+    private static final int NODE_OVERHEAD = 48;
+
+    private static long bytesNotSharedWith(Node a, int shiftA, Node b, int shiftB) {
+        if (a == b || a == null) return 0;
+
+        if (shiftA < shiftB) {
+            // a may have become the first child of b when b grew
+            return bytesNotSharedWith(a, shiftA, ((Node[]) b.items)[0], shiftB - 5);
+        }
+        if (shiftA == 0) return NODE_OVERHEAD + ((byte[]) a.items).length;
+
+        Node[] children = (Node[]) a.items;
+        long bytes = NODE_OVERHEAD + 4 * children.length;
+        if (shiftA > shiftB) {
+            // b may be the first child of a
+            bytes += bytesNotSharedWith(children[0], shiftA - 5, b, shiftB);
+            for (int i = 1; i < children.length; ++i) {
+                bytes += bytesNotSharedWith(children[i], shiftA - 5, null, 0);
+            }
+        } else {
+            Node[] others = b == null ? NO_CHILDREN : (Node[]) b.items;
+            for (int i = 0; i < children.length; ++i) {
+                bytes += bytesNotSharedWith(children[i], shiftA - 5, i < others.length ? others[i] : null, shiftA - 5);
+            }
+        }
+        return bytes;
+    }
+
+    public byte get(int index) {
+        return leafContaining(index)[index & 31];
+    }
+
+    private byte[] leafContaining(int index) {
+        Node node = root;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            node = ((Node[]) node.items)[(index >>> shift) & 31];
+        }
+        return (byte[]) node.items;
+    }
+
+    public DeltaVector set(int index, byte delta) {
+        if (get(index) == delta) return this;
+
+        return new DeltaVector(set(root, shift, index, delta), shift);
+    }
+
+    private static Node set(Node node, int shift, int index, byte delta) {
+        if (shift == 0) {
+            byte[] deltas = ((byte[]) node.items).clone();
+            deltas[index & 31] = delta;
+            return new Node(deltas);
+        } else {
+            Node[] children = ((Node[]) node.items).clone();
+            int i = (index >>> shift) & 31;
+            children[i] = set(children[i], shift - 5, index, delta);
+            return new Node(children);
+        }
+    }
+
+    public DeltaVector push(byte delta) {
+        return pushAll(new byte[]{delta}, 0, 1);
+    }
+
+    /**
+     * Equivalent to pushing the given deltas one by one,
+     * but copies the path to the last leaf only once per 32 deltas.
+     */
+    public DeltaVector pushAll(byte[] deltas, int offset, int length) {
+        DeltaVector result = this;
+        while (length > 0) {
+            final int size = result.size();
+            final int fill = size & 31;
+            final int n = Math.min(32 - fill, length);
+            byte[] leaf;
+            if (fill == 0) {
+                leaf = Arrays.copyOfRange(deltas, offset, offset + n);
+            } else {
+                leaf = Arrays.copyOf(result.leafContaining(size - 1), fill + n);
+                System.arraycopy(deltas, offset, leaf, fill, n);
+            }
+            result = result.withLeafAt(size - fill, new Node(leaf));
+            offset += n;
+            length -= n;
+        }
+        return result;
+    }
+
+    private DeltaVector withLeafAt(int index, Node leaf) {
+        if (root == null) {
+            return new DeltaVector(leaf, 0);
+        } else if (index < 32 << shift) {
+            // same height
+            return new DeltaVector(withLeafAt(root, shift, index, leaf), shift);
+        } else {
+            // increased height
+            Node root = new Node(new Node[]{this.root});
+            return new DeltaVector(withLeafAt(root, shift + 5, index, leaf), shift + 5);
+        }
+    }
+
+    private static Node withLeafAt(Node node, int shift, int index, Node leaf) {
+        if (shift == 0) return leaf;
+
+        Node[] children = node == null ? NO_CHILDREN : (Node[]) node.items;
+        int i = (index >>> shift) & 31;
+        Node[] copy = Arrays.copyOf(children, Math.max(children.length, i + 1));
+        copy[i] = withLeafAt(i < children.length ? children[i] : null, shift - 5, index, leaf);
+        return new Node(copy);
+    }
+
+    public DeltaVector pop() {
+        if (isEmpty()) throw new IllegalStateException("pop on empty vector");
+
+        return take(size() - 1);
+    }
+
+    public DeltaVector take(int n) {
+        if (n <= 0) {
+            return EMPTY;
+        } else if (n >= size()) {
+            return this;
+        } else {
+            Node root = take(this.root, shift, n);
+            int shift = this.shift;
+            // reduced height
+            for (; shift > 0 && ((Node[]) root.items).length == 1; shift -= 5) {
+                root = ((Node[]) root.items)[0];
+            }
+            return new DeltaVector(root, shift);
+        }
+    }
+
+    private static Node take(Node node, int shift, int n) {
+        if (n == node.size) return node;
+
+        if (shift == 0) {
+            return new Node(Arrays.copyOf((byte[]) node.items, n));
+        } else {
+            Node[] children = (Node[]) node.items;
+            int last = (n - 1) >>> shift;
+            Node[] copy = Arrays.copyOf(children, last + 1);
+            copy[last] = take(children[last], shift - 5, n - (last << shift));
+            return new Node(copy);
+        }
+    }
+
+    // RUNNING SUMS
+
+    /**
+     * Returns the sum of the first n deltas.
+     */
+    public int prefixSum(int n) {
+        if (n <= 0) return 0;
+        if (n >= size()) return root.sum;
+
+        final int last = n - 1;
+        int sum = 0;
+        Node node = root;
+        for (int shift = this.shift; shift > 0; shift -= 5) {
+            Node[] children = (Node[]) node.items;
+            int i = (last >>> shift) & 31;
+            for (int k = 0; k < i; ++k) {
+                sum += children[k].sum;
+            }
+            node = children[i];
+        }
+        byte[] deltas = (byte[]) node.items;
+        for (int k = 0; k <= (last & 31); ++k) {
+            sum += deltas[k];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest n in [from, to] with prefixSum(n) < threshold, or -1.
+     */
+    public int firstPrefixBelow(int from, int to, int threshold) {
+        if (from <= 0 && 0 <= to && 0 < threshold) return 0;
+
+        return afterIndex(search(Math.max(from, 1) - 1, to - 1, threshold, true, true));
+    }
+
+    /**
+     * Returns the smallest n in [from, to] with prefixSum(n) > threshold, or -1.
+     */
+    public int firstPrefixAbove(int from, int to, int threshold) {
+        if (from <= 0 && 0 <= to && 0 > threshold) return 0;
+
+        return afterIndex(search(Math.max(from, 1) - 1, to - 1, threshold, false, true));
+    }
+
+    /**
+     * Returns the largest n in [from, to] with prefixSum(n) < threshold, or -1.
+     */
+    public int lastPrefixBelow(int from, int to, int threshold) {
+        int index = search(Math.max(from, 1) - 1, to - 1, threshold, true, false);
+        if (index >= 0) return index + 1;
+
+        return from <= 0 && 0 <= to && 0 < threshold ? 0 : -1;
+    }
+
+    /**
+     * Returns the largest n in [from, to] with prefixSum(n) > threshold, or -1.
+     */
+    public int lastPrefixAbove(int from, int to, int threshold) {
+        int index = search(Math.max(from, 1) - 1, to - 1, threshold, false, false);
+        if (index >= 0) return index + 1;
+
+        return from <= 0 && 0 <= to && 0 > threshold ? 0 : -1;
+    }
+
+    private static int afterIndex(int index) {
+        return index < 0 ? -1 : index + 1;
+    }
+
+    // Finds the index of the delta whose running sum crosses the threshold
+    private int search(int lo, int hi, int threshold, boolean below, boolean forward) {
+        hi = Math.min(hi, size() - 1);
+        if (lo > hi) return -1;
+
+        return search(root, shift, 0, 0, lo, hi, threshold, below, forward);
+    }
+
+    private static int search(Node node, int shift, int base, int sum, int lo, int hi, int threshold, boolean below, boolean forward) {
+        if (hi < base || base + node.size <= lo) return -1;
+        if (below ? sum + node.min >= threshold : sum + node.max <= threshold) return -1;
+
+        if (shift == 0) {
+            byte[] deltas = (byte[]) node.items;
+            if (forward) {
+                for (int k = 0; k < deltas.length; ++k) {
+                    sum += deltas[k];
+                    int index = base + k;
+                    if (lo <= index && index <= hi && (below ? sum < threshold : sum > threshold)) return index;
+                }
+            } else {
+                sum += node.sum;
+                for (int k = deltas.length - 1; k >= 0; --k) {
+                    int index = base + k;
+                    if (lo <= index && index <= hi && (below ? sum < threshold : sum > threshold)) return index;
+                    sum -= deltas[k];
+                }
+            }
+        } else {
+            Node[] children = (Node[]) node.items;
+            if (forward) {
+                for (Node child : children) {
+                    int index = search(child, shift - 5, base, sum, lo, hi, threshold, below, true);
+                    if (index >= 0) return index;
+
+                    base += child.size;
+                    sum += child.sum;
+                }
+            } else {
+                base += node.size;
+                sum += node.sum;
+                for (int k = children.length - 1; k >= 0; --k) {
+                    Node child = children[k];
+                    base -= child.size;
+                    sum -= child.sum;
+                    int index = search(child, shift - 5, base, sum, lo, hi, threshold, below, false);
+                    if (index >= 0) return index;
+                }
+            }
+        }
+        return -1;
+    }
+}
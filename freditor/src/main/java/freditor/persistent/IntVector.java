@@ -0,0 +1,137 @@
+package freditor.persistent;
+
+import java.util.Arrays;
+
+public final class IntVector extends PrimitiveVector<IntVector> {
+    private IntVector(Object root, Object tail, int size) {
+        super(root, tail, size);
+    }
+
+    public static final IntVector EMPTY = new IntVector(null, new int[32], 0);
+
+    public static IntVector of(int... values) {
+        return EMPTY.ofArray(values, values.length);
+    }
+
+    @Override
+    IntVector with(Object root, Object tail, int size) {
+        return new IntVector(root, tail, size);
+    }
+
+    @Override
+    IntVector empty() {
+        return EMPTY;
+    }
+
+    @Override
+    Object newLeaf() {
+        return new int[32];
+    }
+
+    /**
+     * Copies the values from start (inclusive) to end (exclusive),
+     * descending into the trie only once per leaf.
+     */
+    public void copyIntoArray(int start, int end, int[] values, int offset) {
+        copyRange(start, end, values, offset);
+    }
+
+    public int[] toArray() {
+        int[] values = new int[size];
+        copyRange(0, size, values, 0);
+        return values;
+    }
+
+    public int top() {
+        if (isEmpty()) throw new IllegalStateException("top on empty vector");
+
+        return ((int[]) tail)[(size - 1) & 31];
+    }
+
+    public int get(int index) {
+        assert index < size;
+        return ((int[]) tailOrLeafContaining(index))[index & 31];
+    }
+
+    public IntVector set(int index, int value) {
+        int[] leaf = (int[]) copyOfLeafContaining(index);
+        leaf[index & 31] = value;
+        return withLeaf(index, leaf);
+    }
+
+    public IntVector push(int x) {
+        int[] tail = (int[]) tailToPushInto();
+        tail[size & 31] = x;
+        return pushed(tail, 1);
+    }
+
+    public IntVector pushAll(int[] values, int offset, int length) {
+        return pushAllOf(values, offset, length);
+    }
+
+    /**
+     * Assumes ascending values, like IntStack.binarySearch.
+     */
+    public int binarySearch(int key) {
+        int left = 0; // inclusive
+        int right = size; // exclusive
+        while (left < right) {
+            int middle = (left + right) >>> 1;
+            int value = get(middle);
+            if (value < key) {
+                left = middle + 1; // inclusive
+            } else if (value > key) {
+                right = middle; // exclusive
+            } else {
+                return middle;
+            }
+        }
+        return left;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj == this || obj instanceof IntVector && equals((IntVector) obj);
+    }
+
+    boolean equals(IntVector that) {
+        if (this.size != that.size) return false;
+
+        int i;
+        for (i = 0; i + 32 < size; i += 32) {
+            if (!Arrays.equals((int[]) this.leafContaining(i), (int[]) that.leafContaining(i))) return false;
+        }
+
+        final int[] thisTail = (int[]) this.tail;
+        final int[] thatTail = (int[]) that.tail;
+        for (; i < size; ++i) {
+            if (thisTail[i & 31] != thatTail[i & 31]) return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+
+        int i;
+        for (i = 0; i + 32 < size; i += 32) {
+            for (int x : (int[]) leafContaining(i)) {
+                hash = hash * 31 + x;
+            }
+        }
+
+        final int[] tail = (int[]) this.tail;
+        for (; i < size; ++i) {
+            hash = hash * 31 + tail[i & 31];
+        }
+
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
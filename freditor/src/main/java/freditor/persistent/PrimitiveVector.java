@@ -0,0 +1,230 @@
+package freditor.persistent;
+
+import java.util.Arrays;
+
+import static freditor.persistent.ByteVector.isPowerOf32;
+import static freditor.persistent.ByteVector.shift;
+
+/**
+ * The trie behind the persistent vectors of ints and shorts.
+ * Leaves and tail are primitive arrays of length 32, which only the subclasses read and write;
+ * this class merely moves them around as a whole.
+ */
+abstract class PrimitiveVector<V extends PrimitiveVector<V>> {
+    final Object root;
+    final Object tail;
+    final int size;
+
+    PrimitiveVector(Object root, Object tail, int size) {
+        assert size <= 32 || root != null;
+
+        this.root = root;
+        this.tail = tail;
+        this.size = size;
+    }
+
+    abstract V with(Object root, Object tail, int size);
+
+    abstract V empty();
+
+    // a leaf of 32 zeros
+    abstract Object newLeaf();
+
+    @SuppressWarnings("unchecked")
+    private V self() {
+        return (V) this;
+    }
+
+    private Object copyOf(Object leaf) {
+        Object copy = newLeaf();
+        System.arraycopy(leaf, 0, copy, 0, 32);
+        return copy;
+    }
+
+    V ofArray(Object values, int size) {
+        if (size <= 32) {
+            Object tail = newLeaf();
+            System.arraycopy(values, 0, tail, 0, size);
+            return with(null, tail, size);
+        } else {
+            // split input into chunks of 32, plus tail
+            int n = (size - 1) >>> 5;
+            Object[] temp = new Object[n];
+            int index = 0;
+            for (int i = 0; i < n; ++i, index += 32) {
+                temp[i] = newLeaf();
+                System.arraycopy(values, index, temp[i], 0, 32);
+            }
+            Object tail = newLeaf();
+            System.arraycopy(values, index, tail, 0, size - index);
+
+            // grow tree towards root
+            while (n > 1) {
+                int m = (n - 1) >>> 5;
+                index = 0;
+                for (int i = 0; i < m; ++i) {
+                    temp[i] = Arrays.copyOfRange(temp, index, index += 32);
+                }
+                temp[m] = Arrays.copyOfRange(temp, index, n);
+                n = m + 1;
+            }
+            return with(temp[0], tail, size);
+        }
+    }
+
+    // Copies the values from start (inclusive) to end (exclusive), descending into the trie only once per leaf
+    void copyRange(int start, int end, Object values, int offset) {
+        while (start < end) {
+            int stop = Math.min(end, (start | 31) + 1);
+            System.arraycopy(tailOrLeafContaining(start), start & 31, values, offset, stop - start);
+            offset += stop - start;
+            start = stop;
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Estimates the heap bytes retained by this version but not by the other one.
+     */
+    public long bytesNotSharedWith(V other) {
+        long bytes = Sharing.unsharedBytes(root, shift(size), other.root, shift(other.size));
+        if (tail != other.tail) {
+            bytes += Sharing.bytesOfNode(tail);
+        }
+        return bytes;
+    }
+
+    final Object tailOrLeafContaining(int index) {
+        if ((index >>> 5) >= (size - 1) >>> 5) {
+            return tail;
+        } else {
+            return leafContaining(index);
+        }
+    }
+
+    final Object leafContaining(int index) {
+        Object root = this.root;
+        for (int shift = shift(size); shift > 0; shift -= 5) {
+            root = ((Object[]) root)[(index >>> shift) & 31];
+        }
+        return root;
+    }
+
+    // Returns a copy of the leaf containing index, to be modified and passed to withLeaf
+    final Object copyOfLeafContaining(int index) {
+        assert index < size;
+        return copyOf(tailOrLeafContaining(index));
+    }
+
+    // Replaces the leaf containing index, copying the path towards it
+    final V withLeaf(int index, Object leaf) {
+        if ((index >>> 5) >= (size - 1) >>> 5) {
+            return with(root, leaf, size);
+        } else {
+            return with(withLeaf(root, shift(size), index, leaf), tail, size);
+        }
+    }
+
+    private static Object withLeaf(Object node, int shift, int index, Object leaf) {
+        if (shift == 0) {
+            return leaf;
+        } else {
+            Object[] copy = ((Object[]) node).clone();
+            int i = (index >>> shift) & 31;
+            copy[i] = withLeaf(copy[i], shift - 5, index, leaf);
+            return copy;
+        }
+    }
+
+    private boolean isTailFull() {
+        return (size & 31) == 0 && !isEmpty();
+    }
+
+    // Returns the tail to store the next values into, from index size & 31, to be passed to pushed
+    final Object tailToPushInto() {
+        return isTailFull() ? newLeaf() : copyOf(tail);
+    }
+
+    final V pushed(Object newTail, int count) {
+        if (!isTailFull()) {
+            // same leaf count
+            return with(root, newTail, size + count);
+        } else if (!isPowerOf32(size - 32)) {
+            // same height
+            return with(integrate(root, shift(size + 1)), newTail, size + count);
+        } else {
+            // increased height
+            return with(integrate(new Object[]{root}, shift(size + 1)), newTail, size + count);
+        }
+    }
+
+    // Equivalent to pushing the given values one by one, but allocates only one new vector per 32 values
+    final V pushAllOf(Object values, int offset, int length) {
+        V result = self();
+        while (length > 0) {
+            final int tailIndex = result.size & 31;
+            final int n = Math.min(32 - tailIndex, length);
+            Object tail = result.tailToPushInto();
+            System.arraycopy(values, offset, tail, tailIndex, n);
+            result = result.pushed(tail, n);
+            offset += n;
+            length -= n;
+        }
+        return result;
+    }
+
+    private Object integrate(Object root, int shift) {
+        if (shift == 0) {
+            return tail;
+        } else {
+            int index = ((size - 32) >>> shift) & 31;
+            Object[] newRoot = copy(root, index + 1);
+            newRoot[index] = integrate(newRoot[index], shift - 5);
+            return newRoot;
+        }
+    }
+
+    private static Object[] copy(Object root, int size) {
+        if (root == null) {
+            return new Object[1];
+        } else {
+            return Arrays.copyOf((Object[]) root, size);
+        }
+    }
+
+    public V pop() {
+        if (isEmpty()) throw new IllegalStateException("pop on empty vector");
+
+        if ((size & 31) != 1) {
+            // same leaf count
+            return with(root, tail, size - 1);
+        } else if (!isPowerOf32(size - 33)) {
+            // same height
+            return with(root, tailOrLeafContaining(size - 2), size - 1);
+        } else {
+            // reduced height
+            return with(((Object[]) root)[0], tailOrLeafContaining(size - 2), size - 1);
+        }
+    }
+
+    public V take(int n) {
+        if (n <= 0) {
+            return empty();
+        } else if (n == size) {
+            return self();
+        } else {
+            Object root = this.root;
+            for (int shift = shift(size), targetShift = shift(n); shift > targetShift; shift -= 5) {
+                root = ((Object[]) root)[0];
+            }
+            return with(root, tailOrLeafContaining(n - 1), n);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package freditor.persistent;
+
+/**
+ * Moves elements between the two halves of a zipper, whose second half stores its elements in reverse order.
+ * Elements travel in runs of up to 32, each copied out of one leaf, reversed and pushed in one go.
+ */
+public final class Reversal {
+    private Reversal() {
+    }
+
+    // How runs of one element type are copied, reversed and pushed;
+    // D is what the runs are pushed onto, which may be a transient version of V
+    private interface Runs<V, D, A> {
+        int size(V src);
+
+        A newRun();
+
+        void copy(V src, int start, int end, A run);
+
+        void reverse(A run, int length);
+
+        D push(D dst, A run, int length);
+    }
+
+    // Pushes src[start..] onto dst in reverse order, one leaf at a time
+    private static <V, D, A> D pushReversed(Runs<V, D, A> runs, D dst, V src, int start) {
+        A run = runs.newRun();
+        for (int end = runs.size(src); end > start; ) {
+            int begin = Math.max(start, (end - 1) & ~31);
+            int len = end - begin;
+            runs.copy(src, begin, end, run);
+            runs.reverse(run, len);
+            dst = runs.push(dst, run, len);
+            end = begin;
+        }
+        return dst;
+    }
+
+    private static final Runs<ByteVector, TransientByteVector, byte[]> BYTES = new Runs<ByteVector, TransientByteVector, byte[]>() {
+        @Override
+        public int size(ByteVector src) {
+            return src.size();
+        }
+
+        @Override
+        public byte[] newRun() {
+            return new byte[32];
+        }
+
+        @Override
+        public void copy(ByteVector src, int start, int end, byte[] run) {
+            src.copyIntoArray(start, end, run, 0);
+        }
+
+        @Override
+        public void reverse(byte[] run, int length) {
+            for (int i = 0, k = length - 1; i < k; ++i, --k) {
+                byte x = run[i];
+                run[i] = run[k];
+                run[k] = x;
+            }
+        }
+
+        @Override
+        public TransientByteVector push(TransientByteVector dst, byte[] run, int length) {
+            return dst.pushAll(run, 0, length);
+        }
+    };
+
+    private static final Runs<ShortVector, ShortVector, short[]> SHORTS = new Runs<ShortVector, ShortVector, short[]>() {
+        @Override
+        public int size(ShortVector src) {
+            return src.size();
+        }
+
+        @Override
+        public short[] newRun() {
+            return new short[32];
+        }
+
+        @Override
+        public void copy(ShortVector src, int start, int end, short[] run) {
+            src.copyIntoArray(start, end, run, 0);
+        }
+
+        @Override
+        public void reverse(short[] run, int length) {
+            for (int i = 0, k = length - 1; i < k; ++i, --k) {
+                short x = run[i];
+                run[i] = run[k];
+                run[k] = x;
+            }
+        }
+
+        @Override
+        public ShortVector push(ShortVector dst, short[] run, int length) {
+            return dst.pushAll(run, 0, length);
+        }
+    };
+
+    private static final class Ints implements Runs<IntVector, IntVector, int[]> {
+        private final int mirror;
+
+        Ints(int mirror) {
+            this.mirror = mirror;
+        }
+
+        @Override
+        public int size(IntVector src) {
+            return src.size();
+        }
+
+        @Override
+        public int[] newRun() {
+            return new int[32];
+        }
+
+        @Override
+        public void copy(IntVector src, int start, int end, int[] run) {
+            src.copyIntoArray(start, end, run, 0);
+        }
+
+        @Override
+        public void reverse(int[] run, int length) {
+            for (int i = 0, k = length - 1; i < k; ++i, --k) {
+                int x = run[i];
+                run[i] = run[k];
+                run[k] = x;
+            }
+            if (mirror >= 0) {
+                for (int i = 0; i < length; ++i) {
+                    run[i] = mirror - run[i];
+                }
+            }
+        }
+
+        @Override
+        public IntVector push(IntVector dst, int[] run, int length) {
+            return dst.pushAll(run, 0, length);
+        }
+    }
+
+    private static final Ints INTS = new Ints(-1);
+
+    /**
+     * Pushes src[start..] onto dst in reverse order, one leaf at a time.
+     */
+    public static ByteVector pushReversed(ByteVector dst, ByteVector src, int start) {
+        return pushReversed(BYTES, dst.asTransient(), src, start).persistent();
+    }
+
+    /**
+     * Pushes src[start..] onto dst in reverse order, one leaf at a time.
+     */
+    public static ShortVector pushReversed(ShortVector dst, ShortVector src, int start) {
+        return pushReversed(SHORTS, dst, src, start);
+    }
+
+    /**
+     * Pushes src[start..] onto dst in reverse order, one leaf at a time,
+     * mirrored as mirror - x unless mirror is negative.
+     */
+    public static IntVector pushReversed(IntVector dst, IntVector src, int start, int mirror) {
+        return pushReversed(mirror < 0 ? INTS : new Ints(mirror), dst, src, start);
+    }
+}
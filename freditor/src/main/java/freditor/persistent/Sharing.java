@@ -0,0 +1,55 @@
+package freditor.persistent;
+
+/**
+ * Estimates how much heap a version of a 32-ary vector trie retains on its own,
+ * that is, in nodes it does not share with another version.
+ */
+final class Sharing {
+    private Sharing() {
+    }
+
+    private static final Object[] NO_CHILDREN = new Object[0];
+
+    // Rough sizes on a 64-bit JVM with compressed references
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    static long bytesOfNode(Object node) {
+        if (node instanceof Object[]) return ARRAY_HEADER + REFERENCE * ((Object[]) node).length;
+        if (node instanceof byte[]) return ARRAY_HEADER + ((byte[]) node).length;
+        if (node instanceof short[]) return ARRAY_HEADER + 2 * ((short[]) node).length;
+        if (node instanceof int[]) return ARRAY_HEADER + 4 * ((int[]) node).length;
+        return 0;
+    }
+
+    /**
+     * Walks both tries in parallel and sums the sizes of the nodes in a that are not identical to
+     * the nodes at the same positions in b. Identical subtrees are skipped, so comparing
+     * two versions that differ by a few path copies costs O(log n).
+     */
+    static long unsharedBytes(Object a, int shiftA, Object b, int shiftB) {
+        if (a == b || a == null) return 0;
+
+        if (shiftA < shiftB) {
+            // a may have become the first child of b when b grew
+            return unsharedBytes(a, shiftA, ((Object[]) b)[0], shiftB - 5);
+        }
+        long bytes = bytesOfNode(a);
+        if (shiftA > 0) {
+            Object[] children = (Object[]) a;
+            if (shiftA > shiftB) {
+                // b may be the first child of a
+                bytes += unsharedBytes(children[0], shiftA - 5, b, shiftB);
+                for (int i = 1; i < children.length; ++i) {
+                    bytes += unsharedBytes(children[i], shiftA - 5, null, 0);
+                }
+            } else {
+                Object[] others = b instanceof Object[] ? (Object[]) b : NO_CHILDREN;
+                for (int i = 0; i < children.length; ++i) {
+                    bytes += unsharedBytes(children[i], shiftA - 5, i < others.length ? others[i] : null, shiftA - 5);
+                }
+            }
+        }
+        return bytes;
+    }
+}
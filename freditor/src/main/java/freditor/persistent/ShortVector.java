@@ -0,0 +1,67 @@
+package freditor.persistent;
+
+public final class ShortVector extends PrimitiveVector<ShortVector> {
+    private ShortVector(Object root, Object tail, int size) {
+        super(root, tail, size);
+    }
+
+    public static final ShortVector EMPTY = new ShortVector(null, new short[32], 0);
+
+    public static ShortVector of(short... values) {
+        return EMPTY.ofArray(values, values.length);
+    }
+
+    @Override
+    ShortVector with(Object root, Object tail, int size) {
+        return new ShortVector(root, tail, size);
+    }
+
+    @Override
+    ShortVector empty() {
+        return EMPTY;
+    }
+
+    @Override
+    Object newLeaf() {
+        return new short[32];
+    }
+
+    /**
+     * Copies the values from start (inclusive) to end (exclusive),
+     * descending into the trie only once per leaf.
+     */
+    public void copyIntoArray(int start, int end, short[] values, int offset) {
+        copyRange(start, end, values, offset);
+    }
+
+    public short top() {
+        if (isEmpty()) throw new IllegalStateException("top on empty vector");
+
+        return ((short[]) tail)[(size - 1) & 31];
+    }
+
+    public short get(int index) {
+        assert index < size;
+        return ((short[]) tailOrLeafContaining(index))[index & 31];
+    }
+
+    public ShortVector set(int index, short value) {
+        short[] leaf = (short[]) copyOfLeafContaining(index);
+        leaf[index & 31] = value;
+        return withLeaf(index, leaf);
+    }
+
+    public ShortVector push(short x) {
+        short[] tail = (short[]) tailToPushInto();
+        tail[size & 31] = x;
+        return pushed(tail, 1);
+    }
+
+    /**
+     * Equivalent to pushing the given values one by one,
+     * but allocates only one new vector per 32 values.
+     */
+    public ShortVector pushAll(short[] values, int offset, int length) {
+        return pushAllOf(values, offset, length);
+    }
+}
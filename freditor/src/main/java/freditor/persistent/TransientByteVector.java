@@ -0,0 +1,116 @@
+package freditor.persistent;
+
+import java.util.Arrays;
+
+/**
+ * Batch-mutable builder for a ByteVector, modelled after Clojure's transient vectors.
+ * Tail and tree nodes allocated by the builder are mutated in place,
+ * whereas nodes shared with the originating vector are copied on first write.
+ * A vector relaxed by concatenation or slicing is kept as a prefix,
+ * and the pushed bytes are built into a regular vector of their own and concatenated to it at the end.
+ */
+public final class TransientByteVector {
+    private final ByteVector prefix;
+    private Object root;
+    private byte[] tail;
+    private int size;
+
+    // the right-most tree node per level that was allocated by this builder
+    private final Object[][] owned = new Object[7][];
+
+    TransientByteVector(Object root, byte[] tail, int size) {
+        this.prefix = null;
+        this.root = root;
+        this.tail = Arrays.copyOf(tail, 32);
+        this.size = size;
+    }
+
+    TransientByteVector(ByteVector prefix) {
+        this.prefix = prefix;
+        this.tail = new byte[32];
+    }
+
+    private void ensureEditable() {
+        if (tail == null) throw new IllegalStateException("transient used after persistent() call");
+    }
+
+    public int size() {
+        return prefix == null ? size : prefix.size() + size;
+    }
+
+    public TransientByteVector push(byte x) {
+        ensureEditable();
+        if (isTailFull()) {
+            integrateTail();
+        }
+        tail[size & 31] = x;
+        ++size;
+        return this;
+    }
+
+    public TransientByteVector pushAll(byte[] bytes, int offset, int length) {
+        ensureEditable();
+        while (length > 0) {
+            if (isTailFull()) {
+                integrateTail();
+            }
+            final int tailIndex = size & 31;
+            int n = Math.min(32 - tailIndex, length);
+            System.arraycopy(bytes, offset, tail, tailIndex, n);
+            size += n;
+            offset += n;
+            length -= n;
+        }
+        return this;
+    }
+
+    private boolean isTailFull() {
+        return (size & 31) == 0 && size != 0;
+    }
+
+    private void integrateTail() {
+        final int shift = ByteVector.shift(size + 1);
+        if (ByteVector.isPowerOf32(size - 32)) {
+            // increased height
+            Object[] newRoot = new Object[32];
+            newRoot[0] = root;
+            owned[shift / 5] = newRoot;
+            root = newRoot;
+        }
+        root = integrate(root, shift);
+        tail = new byte[32];
+    }
+
+    private Object integrate(Object node, int shift) {
+        if (shift == 0) {
+            return tail;
+        } else {
+            int index = ((size - 32) >>> shift) & 31;
+            Object[] editable = owned[shift / 5];
+            if (editable == null || editable != node) {
+                editable = new Object[32];
+                if (node != null) {
+                    Object[] shared = (Object[]) node;
+                    System.arraycopy(shared, 0, editable, 0, shared.length);
+                }
+                owned[shift / 5] = editable;
+            }
+            editable[index] = integrate(editable[index], shift - 5);
+            return editable;
+        }
+    }
+
+    /**
+     * Freezes the builder into a ByteVector.
+     * The builder must not be used afterwards.
+     */
+    public ByteVector persistent() {
+        ensureEditable();
+        ByteVector result = new ByteVector(root, tail, size);
+        if (prefix != null) {
+            result = prefix.concat(result);
+        }
+        tail = null;
+        return result;
+    }
+}
@@ -3,8 +3,11 @@ package freditor;
 import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class CharZipperTest {
     private final CharZipper text = new CharZipper();
@@ -33,4 +36,154 @@ public class CharZipperTest {
         byte[] expected = "\none\ntwo\nthree\n".getBytes(StandardCharsets.ISO_8859_1);
         assertArrayEquals(expected, output);
     }
-}
\ No newline at end of file
+
+    private static final int MEGABYTES = 2;
+
+    private static byte[] multiMegabyteText() {
+        byte[] bytes = new byte[MEGABYTES << 20];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) ((i % 80 == 79) ? '\n' : 'a' + i % 26);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void focusJumpsAcrossDocument() {
+        byte[] bytes = multiMegabyteText();
+        text.insertBeforeFocus(bytes);
+        final int[] targets = {0, bytes.length, 12345, bytes.length - 33, 33, 34, 1, bytes.length - 1, 1000000};
+        for (int target : targets) {
+            text.focusOn(target);
+            assertEquals(target, text.before().size());
+            assertArrayEquals(bytes, text.toByteArray());
+        }
+    }
+
+    @Test
+    public void copyRangesAcrossFocus() {
+        byte[] bytes = multiMegabyteText();
+        text.insertBeforeFocus(bytes);
+        text.focusOn(1000);
+        final int[][] ranges = {{0, 0}, {0, 1000}, {1000, 5000}, {999, 1001}, {990, 1033}, {12345, bytes.length}};
+        for (int[] range : ranges) {
+            byte[] copy = new byte[range[1] - range[0] + 3];
+            text.copyIntoArray(range[0], range[1], copy, 3);
+            assertArrayEquals(Arrays.copyOfRange(bytes, range[0], range[1]), Arrays.copyOfRange(copy, 3, copy.length));
+        }
+    }
+
+    @Test
+    public void snapshotIgnoresLaterEdits() {
+        text.insertAt(0, "hello world");
+        text.insertAt(5, ",");
+        CharZipper snapshot = text.snapshot();
+
+        text.insertAt(0, "> ");
+        text.deleteRange(7, 14);
+
+        assertEquals("hello, world", snapshot.toString());
+        assertEquals("> hello", text.toString());
+    }
+
+    @Test
+    public void focusJumpBenchmark() {
+        byte[] bytes = multiMegabyteText();
+        CharZipper byteByByte = new CharZipper();
+        byteByByte.insertBeforeFocus(bytes);
+        text.insertBeforeFocus(bytes);
+
+        System.out.println("jump to start of " + MEGABYTES + " MB byte by byte:");
+        Benchmark.measure(() -> byteByByte.focusOnByteByByte(0));
+        System.out.println("jump to start of " + MEGABYTES + " MB leaf by leaf:");
+        Benchmark.measure(() -> text.focusOn(0));
+
+        assertEquals(byteByByte.after(), text.after());
+        assertArrayEquals(byteByByte.toByteArray(), text.toByteArray());
+    }
+
+    @Test
+    public void leafCursorCrossesFocus() {
+        byte[] bytes = multiMegabyteText();
+        text.insertBeforeFocus(bytes);
+        text.focusOn(12345);
+        CharZipper.LeafCursor cursor = text.leafCursor();
+        text.insertAt(0, "ignored by the cursor");
+
+        assertEquals(bytes.length, cursor.length());
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals(bytes[i] & 255, cursor.charAt(i));
+        }
+        for (int i = bytes.length - 1; i >= 0; i -= 7) {
+            assertEquals(bytes[i] & 255, cursor.charAt(i));
+        }
+        assertEquals(text.subSequence(21 + 12000, 21 + 13000), cursor.subSequence(12000, 13000));
+    }
+
+    @Test
+    public void commonPrefixAndSuffixAcrossFoci() {
+        Random random = new Random(14);
+        byte[] bytes = multiMegabyteText();
+        text.insertBeforeFocus(bytes);
+        for (int k = 0; k < 100; ++k) {
+            text.focusOn(random.nextInt(text.length() + 1));
+            CharZipper previous = text.snapshot();
+            final int position = random.nextInt(text.length() + 1);
+            if (random.nextBoolean()) {
+                text.insertAt(position, "edit " + k);
+            } else {
+                text.deleteRange(position, Math.min(text.length(), position + random.nextInt(100)));
+            }
+            text.focusOn(random.nextInt(text.length() + 1));
+
+            String a = previous.toString();
+            String b = text.toString();
+            int prefix = 0;
+            while (prefix < Math.min(a.length(), b.length()) && a.charAt(prefix) == b.charAt(prefix)) {
+                ++prefix;
+            }
+            final int max = Math.min(a.length(), b.length()) - prefix;
+            int suffix = 0;
+            while (suffix < max && a.charAt(a.length() - 1 - suffix) == b.charAt(b.length() - 1 - suffix)) {
+                ++suffix;
+            }
+            assertEquals(prefix, text.commonPrefixLength(previous));
+            assertEquals(prefix, previous.commonPrefixLength(text));
+            assertEquals(suffix, text.commonSuffixLength(previous, max));
+            assertEquals(suffix, previous.commonSuffixLength(text, max));
+        }
+    }
+
+    private static int[] sortedPositions(Random random, int len) {
+        int[] positions = new int[4];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = random.nextInt(len + 1);
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    @Test
+    public void swapRangesLikeStrings() {
+        Random random = new Random(5);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            expected.append((char) ('a' + random.nextInt(26)));
+        }
+        text.insertAt(0, expected);
+        for (int k = 0; k < 300; ++k) {
+            final int len = expected.length();
+            int[] p = sortedPositions(random, len);
+            text.focusOn(random.nextInt(len + 1));
+            text.swapRanges(p[0], p[1], p[2], p[3]);
+            String s = expected.toString();
+            expected.setLength(0);
+            expected.append(s, 0, p[0]).append(s, p[2], p[3]).append(s, p[1], p[2]).append(s, p[0], p[1]).append(s, p[3], len);
+            if (k % 10 == 0) {
+                String pasted = "pasted text that is longer than a leaf";
+                text.insertAt(p[1], pasted);
+                expected.insert(p[1], pasted);
+            }
+            assertEquals(expected.toString(), text.toString());
+        }
+    }
+}
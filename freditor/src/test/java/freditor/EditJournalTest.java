@@ -0,0 +1,200 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EditJournalTest {
+    private static Path temporaryJournal() throws IOException {
+        Path path = Files.createTempFile("edits", ".journal");
+        path.toFile().deleteOnExit();
+        return path;
+    }
+
+    // Like Autosaver, which computes the CRC-32 while hashing the snapshot
+    private static void appendRecords(EditJournal journal, byte[] text) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        journal.append(journal.takeRecords(), text.length, (int) crc.getValue());
+    }
+
+    @Test
+    public void resumeOnlyAfterMatchingCheckpoint() throws IOException {
+        Path path = temporaryJournal();
+        EditJournal journal = new EditJournal(path.toString());
+        assertFalse(journal.resume("hello".getBytes()));
+
+        journal.insert(5, " world");
+        appendRecords(journal, "hello world".getBytes());
+
+        assertTrue(new EditJournal(path.toString()).resume("hello world".getBytes()));
+        assertFalse(new EditJournal(path.toString()).resume("hello".getBytes()));
+        // the mismatch restarted the journal with "hello" as its base
+        assertTrue(new EditJournal(path.toString()).resume("hello".getBytes()));
+    }
+
+    @Test
+    public void checkpointComparesCrc() throws IOException {
+        Path path = temporaryJournal();
+        EditJournal journal = new EditJournal(path.toString());
+        journal.resume("hello".getBytes());
+        journal.delete(0, 1);
+        journal.insert(0, "j");
+        appendRecords(journal, "jello".getBytes());
+
+        // same length, different text
+        assertFalse(new EditJournal(path.toString()).resume("cello".getBytes()));
+    }
+
+    @Test
+    public void historyStartsWithBase() throws IOException {
+        Path path = temporaryJournal();
+        EditJournal journal = new EditJournal(path.toString());
+        journal.resume("abc".getBytes());
+        journal.delete(0, 1);
+        appendRecords(journal, "bc".getBytes());
+
+        EditJournal resumed = new EditJournal(path.toString());
+        assertTrue(resumed.resume("bc".getBytes()));
+        ByteBuffer history = resumed.history();
+        assertEquals(EditJournal.LOAD, history.get());
+        assertEquals(3, history.getInt());
+        history.position(history.position() + 3);
+        assertEquals(EditJournal.CHECKPOINT, history.get());
+        history.position(history.position() + 8);
+        assertEquals(EditJournal.DELETE, history.get());
+        assertEquals(0, history.getInt());
+        assertEquals(1, history.getInt());
+        assertEquals(EditJournal.CHECKPOINT, history.get());
+    }
+
+    @Test
+    public void takeRecordsForgets() {
+        EditJournal journal = new EditJournal("unused");
+        journal.record(EditJournal.UNDO);
+        assertArrayEquals(new byte[]{EditJournal.UNDO}, journal.takeRecords());
+        assertEquals(0, journal.takeRecords().length);
+    }
+
+    // Session one: "start" is edited into "start one three", with an undo in between
+    private static Path previousSession() throws IOException {
+        Path path = temporaryJournal();
+        EditJournal journal = new EditJournal(path.toString());
+        Freditor freditor = FreditorUndoTest.newFreditor();
+        freditor.loadFromString("start");
+        freditor.setCursorTo(freditor.length());
+        freditor.recordEditsIn(journal, journal.resume(freditor.toByteArray()));
+        freditor.insert(" one");
+        freditor.insert(" two");
+        freditor.undo();
+        freditor.insert(" three");
+        assertEquals("start one three", freditor.toString());
+        appendRecords(journal, freditor.toByteArray());
+        return path;
+    }
+
+    private static Freditor nextSession(Path path, boolean expectResumed) throws IOException {
+        EditJournal journal = new EditJournal(path.toString());
+        Freditor freditor = FreditorUndoTest.newFreditor();
+        freditor.loadFromString("start one three");
+        freditor.setCursorTo(freditor.length());
+        boolean resumed = journal.resume(freditor.toByteArray());
+        assertEquals(expectResumed, resumed);
+        freditor.recordEditsIn(journal, resumed);
+        return freditor;
+    }
+
+    @Test
+    public void undoReachesPreviousSession() throws IOException {
+        Freditor freditor = nextSession(previousSession(), true);
+        freditor.insert("!");
+        freditor.undo();
+        assertEquals("start one three", freditor.toString());
+
+        freditor.undo();
+        assertEquals("start one", freditor.toString());
+        freditor.undo();
+        assertEquals("start", freditor.toString());
+
+        // the future of this session survived the replay
+        freditor.redo();
+        freditor.redo();
+        freditor.redo();
+        assertEquals("start one three!", freditor.toString());
+    }
+
+    @Test
+    public void evictedStepsDoNotPreventReplay() throws IOException {
+        Freditor freditor = nextSession(previousSession(), true);
+        freditor.setUndoBudget(1, Long.MAX_VALUE);
+        freditor.insert("a");
+        freditor.insert("b");
+        freditor.undo();
+        assertEquals("start one threea", freditor.toString());
+
+        // the step back to "start one three" was evicted, so undo continues before it
+        freditor.undo();
+        assertEquals("start one", freditor.toString());
+    }
+
+    @Test
+    public void tamperedHistoryIsNotReplayed() throws IOException {
+        Path path = previousSession();
+        byte[] bytes = Files.readAllBytes(path);
+        String journal = new String(bytes, StandardCharsets.ISO_8859_1);
+        // the text still matches the final checkpoint, but the edits do not lead to it
+        bytes[journal.indexOf(" one") + 1] = 'O';
+        Files.write(path, bytes);
+
+        Freditor freditor = nextSession(path, true);
+        freditor.insert("!");
+        freditor.undo();
+        freditor.undo();
+        assertEquals("start one three", freditor.toString());
+        assertEquals(0, freditor.undoSteps());
+        freditor.redo();
+        assertEquals("start one three!", freditor.toString());
+    }
+
+    @Test
+    public void corruptHistoryIsNotReplayed() throws IOException {
+        Path path = previousSession();
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[new String(bytes, StandardCharsets.ISO_8859_1).indexOf(EditJournal.COMMIT)] = '?';
+        Files.write(path, bytes);
+
+        Freditor freditor = nextSession(path, true);
+        freditor.undo();
+        assertEquals("start one three", freditor.toString());
+        assertEquals(0, freditor.undoSteps());
+    }
+
+    @Test
+    public void lineMovesAreReplayed() throws IOException {
+        Path path = temporaryJournal();
+        EditJournal journal = new EditJournal(path.toString());
+        Freditor freditor = FreditorUndoTest.newFreditor();
+        freditor.loadFromString("one\ntwo\nthree");
+        freditor.recordEditsIn(journal, journal.resume(freditor.toByteArray()));
+        freditor.setCursorTo(0);
+        freditor.moveSelectedLinesDown();
+        freditor.moveSelectedLinesDown();
+        assertEquals("two\nthree\none", freditor.toString());
+        appendRecords(journal, freditor.toByteArray());
+
+        EditJournal resumed = new EditJournal(path.toString());
+        Freditor next = FreditorUndoTest.newFreditor();
+        next.loadFromString("two\nthree\none");
+        assertTrue(resumed.resume(next.toByteArray()));
+        next.recordEditsIn(resumed, true);
+        next.undo();
+        assertEquals("one\ntwo\nthree", next.toString());
+    }
+}
@@ -0,0 +1,89 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorIndentTest {
+    private static final String[] SNIPPETS = {
+            "{\n", "}\n", "x(", ")", "\n", "  ", "[\n", "]", "/* { */", "\"}\"", "if (a) {\n b();\n}\n", "/*\n{\n*/"
+    };
+
+    // A freshly loaded copy has no cached levels, so indent() indents all of its rows
+    private static String indentedFromScratch(String text) {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(text);
+        freditor.indent();
+        return freditor.toString();
+    }
+
+    private static void assertIndentedLikeFromScratch(Freditor freditor, String where) {
+        freditor.indent();
+        String text = freditor.toString();
+        assertEquals(indentedFromScratch(text), text, where);
+    }
+
+    @Test
+    public void incrementalIndentationAgreesWithFullIndentation() {
+        Random random = new Random(8);
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(FreditorLexingTest.commentsAndStrings(60, 20, 9).replace("f(x);", "f(x) {"));
+        assertIndentedLikeFromScratch(freditor, "initially");
+
+        for (int step = 0; step < 400; ++step) {
+            final int len = freditor.length();
+            final int position = random.nextInt(len + 1);
+            String snippet = SNIPPETS[random.nextInt(SNIPPETS.length)];
+            String operation;
+            switch (random.nextInt(8)) {
+                case 0:
+                    // far from the cursor, without a commit
+                    operation = "insertAt";
+                    freditor.insertAt(position, snippet);
+                    break;
+
+                case 1:
+                    operation = "deleteRange";
+                    freditor.deleteRange(position, Math.min(len, position + random.nextInt(40)));
+                    break;
+
+                case 2:
+                    operation = "insert";
+                    freditor.setCursorTo(position);
+                    freditor.insert(snippet);
+                    break;
+
+                case 3:
+                    operation = "undo";
+                    freditor.undo();
+                    break;
+
+                case 4:
+                    operation = "redo";
+                    freditor.redo();
+                    break;
+
+                case 5:
+                    operation = "moveSelectedLinesUp";
+                    freditor.setCursorTo(position);
+                    freditor.moveSelectedLinesUp();
+                    break;
+
+                case 6:
+                    operation = "moveSelectedLinesDown";
+                    freditor.setCursorTo(position);
+                    freditor.moveSelectedLinesDown();
+                    break;
+
+                default:
+                    operation = "indent";
+                    assertIndentedLikeFromScratch(freditor, "indent at step " + step);
+            }
+            if (random.nextInt(3) == 0) {
+                assertIndentedLikeFromScratch(freditor, operation + " at step " + step);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorLexingTest {
+    // Mostly rows inside multi-line comments and strings, so that the line-aligned chunks
+    // of the parallel lexer start inside them, where lexing from END goes astray
+    static String commentsAndStrings(int blocks, int maxRows, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int b = 0; b < blocks; ++b) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    text.append("/* comment\n");
+                    for (int rows = random.nextInt(maxRows); rows > 0; --rows) {
+                        text.append("  \"quoted\" (not [code] {\n");
+                    }
+                    text.append("*/ f(x);\n");
+                    break;
+
+                case 1:
+                    text.append("\"string\n");
+                    for (int rows = random.nextInt(maxRows); rows > 0; --rows) {
+                        text.append("  /* not a comment \\\" ( {\n");
+                    }
+                    text.append("\" g[0];\n");
+                    break;
+
+                default:
+                    text.append("if (a) {b(c[1]);}\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private static void assertSameStates(Freditor expected, Freditor actual) {
+        assertEquals(expected.toString(), actual.toString());
+        final int len = expected.length();
+        for (int i = 0; i <= len; ++i) {
+            if (expected.stateAt(i) != actual.stateAt(i)) {
+                fail("state at " + i + " of " + len);
+            }
+        }
+    }
+
+    @Test
+    public void parallelLexingAgreesWithSequentialLexing() {
+        String text = commentsAndStrings(3000, 20, 1);
+        Freditor sequential = TestFlexer.newFreditor();
+        sequential.loadFromString(text);
+        Freditor parallel = TestFlexer.newFreditor();
+        parallel.parallelLexingThreshold = 1;
+        parallel.loadFromString(text);
+        assertSameStates(sequential, parallel);
+
+        // an insertion starts from the state before it, and its end is fixed like any edit
+        String insertion = commentsAndStrings(300, 20, 2);
+        for (int index : new int[]{text.length() / 3, text.length() / 3 + 10, 0, text.length()}) {
+            sequential.insertAt(index, insertion);
+            parallel.insertAt(index, insertion);
+            assertSameStates(sequential, parallel);
+        }
+    }
+
+    @Test
+    public void swappedRangesAreRelexedLikeALoadedText() {
+        Random random = new Random(4);
+        Freditor swapped = TestFlexer.newFreditor();
+        swapped.loadFromString(commentsAndStrings(200, 20, 5));
+        for (int k = 0; k < 50; ++k) {
+            int[] p = new int[4];
+            for (int i = 0; i < p.length; ++i) {
+                p[i] = random.nextInt(swapped.length() + 1);
+            }
+            Arrays.sort(p);
+            swapped.swapRanges(p[0], p[1], p[2], p[3]);
+            Freditor loaded = TestFlexer.newFreditor();
+            loaded.loadFromString(swapped.toString());
+            assertSameStates(loaded, swapped);
+            assertEquals(loaded.rows(), swapped.rows());
+            for (int row = 0; row < loaded.rows(); ++row) {
+                assertEquals(loaded.homePositionOfRow(row), swapped.homePositionOfRow(row), "home of row " + row);
+            }
+        }
+    }
+}
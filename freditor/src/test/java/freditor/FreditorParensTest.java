@@ -0,0 +1,113 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorParensTest {
+    private static int nestingDeltaAt(Freditor freditor, int index) {
+        return Flexer.nestingDelta.getOrDefault(freditor.stateAt(index), 0);
+    }
+
+    private static int openingParenByScanning(Freditor freditor, int start, int end) {
+        int nesting = 0;
+        for (int i = end - 1; i >= start; --i) {
+            nesting += nestingDeltaAt(freditor, i);
+            if (nesting > 0) return i;
+        }
+        return -1;
+    }
+
+    private static int closingParenByScanning(Freditor freditor, int start, int end) {
+        int nesting = 0;
+        for (int i = start; i < end; ++i) {
+            nesting += nestingDeltaAt(freditor, i);
+            if (nesting < 0) return i;
+        }
+        return -1;
+    }
+
+    // Moves the boundary between the before and after halves without changing the text
+    private static void focusOn(Freditor freditor, int index) {
+        freditor.insertAt(index, "x");
+        freditor.deleteRange(index, index + 1);
+    }
+
+    private static void assertParensAsScanned(Freditor freditor, int cursor, int start, int end) {
+        freditor.setCursorTo(cursor);
+        int[] found = new int[2];
+        freditor.findOpeningParen(start, position -> found[0] = position, () -> found[0] = -1);
+        freditor.findClosingParen(end, position -> found[1] = position, () -> found[1] = -1);
+        String where = "cursor " + cursor + ", range " + start + ".." + end;
+        assertEquals(openingParenByScanning(freditor, start, cursor), found[0], where);
+        assertEquals(closingParenByScanning(freditor, cursor, end), found[1], where);
+    }
+
+    private static void assertParensAsScanned(Freditor freditor, long seed) {
+        Random random = new Random(seed);
+        final int len = freditor.length();
+        for (int focus : new int[]{0, len / 3, len / 2 + 17, len}) {
+            focusOn(freditor, focus);
+            for (int k = 0; k < 40; ++k) {
+                int cursor = random.nextInt(len + 1);
+                assertParensAsScanned(freditor, cursor, 0, len);
+                assertParensAsScanned(freditor, cursor, random.nextInt(cursor + 1), cursor + random.nextInt(len - cursor + 1));
+            }
+            for (int cursor : new int[]{0, focus, len}) {
+                assertParensAsScanned(freditor, cursor, 0, len);
+            }
+        }
+    }
+
+    @Test
+    public void parensOutsideCommentsAndStrings() {
+        // parens inside comments and strings do not count
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(FreditorLexingTest.commentsAndStrings(400, 20, 3));
+        assertParensAsScanned(freditor, 4);
+    }
+
+    @Test
+    public void deepNestingAcrossNodes() {
+        // the nesting peaks in the middle, several levels of the tree away from either end
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; ++i) {
+            text.append("([{".charAt(i % 3));
+        }
+        for (int i = 3000; i > 0; --i) {
+            text.append(i % 32 == 0 ? "x" : "");
+            text.append(")]}".charAt((i - 1) % 3));
+        }
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(text.toString());
+        assertParensAsScanned(freditor, 5);
+    }
+
+    @Test
+    public void unbalancedText() {
+        Random random = new Random(6);
+        for (String parens : new String[]{"(", ")", "(()", "())", "((x", "x))"}) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 5000) {
+                text.append(parens.charAt(random.nextInt(parens.length())));
+            }
+            Freditor freditor = TestFlexer.newFreditor();
+            freditor.loadFromString(text.toString());
+            assertParensAsScanned(freditor, 7);
+        }
+    }
+
+    @Test
+    public void missingParens() {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString("x /* ( */ \"[\" ) y");
+        assertParensAsScanned(freditor, 4, 0, freditor.length());
+        freditor.setCursorTo(4);
+        boolean[] missing = new boolean[2];
+        freditor.findOpeningParen(0, position -> fail("opening at " + position), () -> missing[0] = true);
+        freditor.findClosingParen(13, position -> fail("closing at " + position), () -> missing[1] = true);
+        assertTrue(missing[0] && missing[1]);
+    }
+}
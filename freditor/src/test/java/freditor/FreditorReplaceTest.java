@@ -0,0 +1,86 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorReplaceTest {
+    private static void assertReplacedLikeString(String text, String regex, String replacement) {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(text);
+        freditor.replace(regex, replacement);
+        assertEquals(text.replaceAll(regex, replacement), freditor.toString(), regex + " -> " + replacement);
+    }
+
+    @Test
+    public void replacementSyntax() {
+        assertReplacedLikeString("a1b22c333", "\\d+", "<$0>");
+        // there are fewer than 12 groups, so $12 is group 1 followed by 2
+        assertReplacedLikeString("abc abc", "(a)(b)(c)", "$12");
+        assertReplacedLikeString("abcdefghijkl", "(a)(b)(c)(d)(e)(f)(g)(h)(i)(j)(k)(l)", "$12$11$1");
+        assertReplacedLikeString("key=value", "(?<k>\\w+)=(?<v>\\w+)", "${v}=${k}");
+        assertReplacedLikeString("cost 5", "\\d", "\\$$0");
+        assertReplacedLikeString("a.b", "\\.", "\\\\");
+        // the optional group does not participate in the second match
+        assertReplacedLikeString("ab b", "(a)?b", "[$1]");
+        assertReplacedLikeString("abc", "", "-");
+        assertReplacedLikeString("x\ny\nx", "(?m)^x$", "z\nz");
+        assertReplacedLikeString("keep", "missing", "$0");
+    }
+
+    @Test
+    public void malformedReplacementsChangeNothing() {
+        for (String replacement : new String[]{"x\\", "x$", "$2", "${missing}", "${v"}) {
+            Freditor freditor = TestFlexer.newFreditor();
+            freditor.loadFromString("key=value");
+            assertThrows(RuntimeException.class, () -> "key=value".replaceAll("(?<v>\\w+)", replacement));
+            assertThrows(RuntimeException.class, () -> freditor.replace("(?<v>\\w+)", replacement));
+            assertEquals("key=value", freditor.toString());
+            assertEquals(0, freditor.undoSteps());
+        }
+    }
+
+    private static String numberedRows(int rows) {
+        StringBuilder text = new StringBuilder();
+        for (int row = 0; row < rows; ++row) {
+            text.append(row >= 40 && row <= 42 ? "target " : "row ").append(row).append('\n');
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void replaceIsOneUndoStep() {
+        Freditor freditor = TestFlexer.newFreditor();
+        String text = numberedRows(100);
+        freditor.loadFromString(text);
+        freditor.replace("target", "hit\nhit");
+        assertEquals(text.replace("target", "hit\nhit"), freditor.toString());
+        assertEquals(1, freditor.undoSteps());
+
+        freditor.undo();
+        assertEquals(text, freditor.toString());
+        freditor.redo();
+        assertEquals(text.replace("target", "hit\nhit"), freditor.toString());
+    }
+
+    @Test
+    public void replaceKeepsCursorRowAndColumn() {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(numberedRows(100));
+        freditor.setCursorTo(50, 3);
+        freditor.replace("(?m)^row", "r");
+        assertEquals(50, freditor.row());
+        assertEquals(3, freditor.column());
+    }
+
+    @Test
+    public void replaceLeavesOtherRowsAlone() {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromString(numberedRows(100));
+        freditor.forgetChangedRows();
+        freditor.replace("target (\\d+)", "hit $1");
+        assertTrue(freditor.firstChangedRow() >= 40, "first changed row " + freditor.firstChangedRow());
+        assertTrue(freditor.lastChangedRow() <= 42, "last changed row " + freditor.lastChangedRow());
+        assertEquals(numberedRows(100).replace("target", "hit"), freditor.toString());
+    }
+}
@@ -0,0 +1,129 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreditorUndoTest {
+    static final Flexer flexer = new Flexer() {
+        private final FlexerState start = new FlexerStateBuilder()
+                .set('\n', NEWLINE)
+                .set(' ', SPACE_HEAD)
+                .build()
+                .setDefault(ERROR);
+
+        @Override
+        protected FlexerState start() {
+            return start;
+        }
+    };
+
+    static Freditor newFreditor() {
+        return new Freditor(flexer, Indenter.instance);
+    }
+
+    private static String block(char c, int length) {
+        char[] chars = new char[length];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void unlimitedStepsByDefault() {
+        Freditor freditor = newFreditor();
+        for (int i = 0; i < 2000; ++i) {
+            freditor.insert("x");
+        }
+        assertEquals(2000, freditor.undoSteps());
+    }
+
+    @Test
+    public void oldestStepsAreEvicted() {
+        Freditor freditor = newFreditor();
+        freditor.setUndoBudget(3, Long.MAX_VALUE);
+        for (String s : new String[]{"a", "b", "c", "d", "e"}) {
+            freditor.insert(s);
+        }
+        assertEquals(3, freditor.undoSteps());
+
+        for (int i = 0; i < 4; ++i) {
+            freditor.undo();
+        }
+        assertEquals("ab", freditor.toString());
+        assertEquals(0, freditor.undoSteps());
+    }
+
+    @Test
+    public void byteBudgetKeepsNewestStep() {
+        Freditor freditor = newFreditor();
+        freditor.setUndoBudget(Integer.MAX_VALUE, 0);
+        for (char c = 'a'; c <= 'e'; ++c) {
+            freditor.insert(block(c, 10_000));
+        }
+        assertEquals(1, freditor.undoSteps());
+        assertEquals(0, freditor.pastBytes());
+
+        freditor.undo();
+        assertEquals(40_000, freditor.length());
+    }
+
+    @Test
+    public void pastBytesReturnToZero() {
+        Freditor freditor = newFreditor();
+        for (char c = 'a'; c <= 'e'; ++c) {
+            freditor.insert(block(c, 10_000));
+        }
+        assertTrue(freditor.pastBytes() > 0);
+
+        while (freditor.undoSteps() > 0) {
+            freditor.undo();
+        }
+        assertEquals(0, freditor.pastBytes());
+        assertEquals("", freditor.toString());
+    }
+
+    @Test
+    public void retainedBytesIncludeFuture() {
+        Freditor freditor = newFreditor();
+        for (char c = 'a'; c <= 'c'; ++c) {
+            freditor.insert(block(c, 100_000));
+        }
+        final long retained = freditor.retainedUndoBytes();
+
+        freditor.undo();
+        freditor.undo();
+        assertEquals(1, freditor.undoSteps());
+        // the future still holds the two blocks that were undone
+        assertTrue(freditor.retainedUndoBytes() > 200_000);
+
+        freditor.redo();
+        freditor.redo();
+        assertEquals(retained, freditor.retainedUndoBytes());
+    }
+
+    @Test
+    public void lineMovesTradePlacesAndUndoAtOnce() {
+        Freditor freditor = newFreditor();
+        freditor.loadFromString("one\ntwo\nthree\n");
+        freditor.setCursorTo(5);
+        freditor.moveSelectedLinesUp();
+        assertEquals("two\none\nthree\n", freditor.toString());
+        assertEquals(1, freditor.cursor());
+
+        freditor.moveSelectedLinesDown();
+        freditor.moveSelectedLinesDown();
+        assertEquals("one\nthree\ntwo\n", freditor.toString());
+        assertEquals(11, freditor.cursor());
+
+        // the selected rows move together, the row after a selection ending at its start stays
+        freditor.setCursorTo(4);
+        freditor.setRowAndColumn(2, 0);
+        freditor.moveSelectedLinesUp();
+        assertEquals("three\none\ntwo\n", freditor.toString());
+        assertEquals(0, freditor.selectionStart());
+        assertEquals(6, freditor.selectionEnd());
+
+        freditor.undo();
+        assertEquals("one\ntwo\nthree\n", freditor.toString());
+    }
+}
@@ -0,0 +1,95 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedTextTest {
+    // far more rows than one lexed window, and several checkpoints,
+    // with comments and strings spanning more rows than the context lexed above a position
+    private static Path temporaryFile() throws IOException {
+        Path path = Files.createTempFile("mapped", ".txt");
+        path.toFile().deleteOnExit();
+        Files.write(path, FreditorLexingTest.commentsAndStrings(600, 400, 10).getBytes(StandardCharsets.ISO_8859_1));
+        return path;
+    }
+
+    private static Freditor loaded(Path path) throws IOException {
+        Freditor freditor = TestFlexer.newFreditor();
+        freditor.loadFromFile(path.toString());
+        return freditor;
+    }
+
+    private static final Runnable ignored = () -> {
+    };
+
+    @Test
+    public void rowsAgreeWithFreditor() throws IOException {
+        Path path = temporaryFile();
+        Freditor freditor = loaded(path);
+        MappedText view = new MappedText(path.toString(), TestFlexer.instance, ignored);
+        assertEquals(freditor.length(), view.length());
+        assertEquals(freditor.rows() - 1, view.rowOfPosition(view.length()));
+        assertEquals(freditor.rows(), view.rows());
+        for (int row = 0; row < freditor.rows(); ++row) {
+            assertEquals(freditor.homePositionOfRow(row), view.homePositionOfRow(row), "home of row " + row);
+            assertEquals(freditor.endPositionOfRow(row), view.endPositionOfRow(row), "end of row " + row);
+        }
+        Random random = new Random(11);
+        for (int k = 0; k < 1000; ++k) {
+            int position = random.nextInt(freditor.length() + 1);
+            assertEquals(freditor.rowOfPosition(position), view.rowOfPosition(position), "row of " + position);
+            assertEquals(freditor.endPositionOf(position), view.endPositionOf(position), "end of " + position);
+        }
+        view.close();
+    }
+
+    private static void assertLexedLikeFreditor(Freditor freditor, MappedText view, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (freditor.stateAt(i) != view.stateAt(i)) {
+                fail("state at " + i);
+            }
+        }
+    }
+
+    @Test
+    public void windowsAreLexedLikeTheWholeText() throws IOException {
+        Path path = temporaryFile();
+        Freditor freditor = loaded(path);
+        MappedText view = new MappedText(path.toString(), TestFlexer.instance, ignored);
+        final int len = freditor.length();
+        // jumping around makes windows start anywhere, mostly within comments and strings
+        Random random = new Random(12);
+        for (int k = 0; k < 50; ++k) {
+            int start = random.nextInt(len);
+            assertLexedLikeFreditor(freditor, view, start, Math.min(len, start + 5000));
+        }
+        // scrolling up relexes windows whose start lies above
+        for (int start = len; start > 0; start -= 20000) {
+            assertLexedLikeFreditor(freditor, view, Math.max(0, start - 1000), start);
+        }
+        assertEquals(Flexer.END, view.stateAt(len));
+        view.close();
+    }
+
+    @Test
+    public void backgroundIndexingCompletes() throws IOException, InterruptedException {
+        Path path = temporaryFile();
+        Freditor freditor = loaded(path);
+        CountDownLatch fullyIndexed = new CountDownLatch(1);
+        MappedText view = new MappedText(path.toString(), TestFlexer.instance, fullyIndexed::countDown);
+        assertTrue(fullyIndexed.await(10, TimeUnit.SECONDS));
+        // rows() does not index by itself
+        assertEquals(freditor.rows(), view.rows());
+        assertEquals(freditor.toString(), view.toString());
+        view.close();
+    }
+}
@@ -0,0 +1,103 @@
+package freditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotStoreTest {
+    private static Path temporaryPack() throws IOException {
+        Path path = Files.createTempFile("snapshots", ".pack");
+        path.toFile().deleteOnExit();
+        return path;
+    }
+
+    private static List<CharZipper> randomEdits(int versions, Random random) {
+        List<CharZipper> result = new ArrayList<>();
+        CharZipper text = new CharZipper();
+        for (int i = 0; i < versions; ++i) {
+            int position = random.nextInt(text.length() + 1);
+            if (random.nextInt(4) == 0 && position < text.length()) {
+                text.deleteRange(position, Math.min(text.length(), position + random.nextInt(10)));
+            } else {
+                text.insertAt(position, "edit " + i + "\n");
+            }
+            result.add(text.snapshot());
+        }
+        return result;
+    }
+
+    @Test
+    public void versionsSurviveReopening() throws IOException {
+        Path path = temporaryPack();
+        List<CharZipper> versions = randomEdits(200, new Random(42));
+
+        SnapshotStore store = new SnapshotStore(path.toString());
+        for (int i = 0; i < 150; ++i) {
+            assertTrue(store.put("v" + i, versions.get(i)));
+        }
+        assertFalse(store.put("v7", versions.get(7)));
+
+        // the first difference after reopening is taken from the stored predecessor
+        SnapshotStore reopened = new SnapshotStore(path.toString());
+        for (int i = 150; i < versions.size(); ++i) {
+            assertTrue(reopened.put("v" + i, versions.get(i)));
+        }
+
+        reopened = new SnapshotStore(path.toString());
+        assertEquals(versions.size(), reopened.hashes().size());
+        for (int i = 0; i < versions.size(); ++i) {
+            assertArrayEquals(versions.get(i).toByteArray(), reopened.get("v" + i));
+        }
+        assertNull(reopened.get("unknown"));
+    }
+
+    @Test
+    public void deltasAreSmall() throws IOException {
+        Path path = temporaryPack();
+        final int versions = 60;
+        byte[] large = new byte[100_000];
+        Arrays.fill(large, (byte) 'x');
+        CharZipper text = CharZipper.of(large);
+        Random random = new Random(2);
+
+        SnapshotStore store = new SnapshotStore(path.toString());
+        store.put("large", text.snapshot());
+        long before = Files.size(path);
+        for (int i = 0; i < versions; ++i) {
+            int position = random.nextInt(large.length);
+            large[position] = (byte) ('A' + i);
+            text.deleteRange(position, position + 1);
+            text.insertAt(position, (char) ('A' + i));
+            store.put("large" + i, text.snapshot());
+        }
+        assertTrue(Files.size(path) - before < versions * 100);
+        assertArrayEquals(large, new SnapshotStore(path.toString()).get("large" + (versions - 1)));
+    }
+
+    @Test
+    public void incompleteRecordIsDiscarded() throws IOException {
+        Path path = temporaryPack();
+        SnapshotStore store = new SnapshotStore(path.toString());
+        store.put("a", CharZipper.of("first".getBytes()));
+        store.put("b", CharZipper.of("second".getBytes()));
+        long size = Files.size(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        SnapshotStore reopened = new SnapshotStore(path.toString());
+        assertEquals(1, reopened.hashes().size());
+        assertTrue(reopened.put("c", CharZipper.of("third".getBytes())));
+        assertArrayEquals("third".getBytes(), new SnapshotStore(path.toString()).get("c"));
+    }
+}
@@ -0,0 +1,52 @@
+package freditor;
+
+import static freditor.FlexerState.EMPTY;
+import static freditor.FlexerState.THIS;
+
+/**
+ * A small C-like flexer for tests, with parens, brackets and braces,
+ * and block comments and strings that may both span several lines.
+ */
+final class TestFlexer extends Flexer {
+    static final TestFlexer instance = new TestFlexer();
+
+    private final FlexerState COMMENT_END = EMPTY.tail();
+    private final FlexerState COMMENT_STAR = new FlexerState('*', THIS, '/', COMMENT_END);
+    private final FlexerState COMMENT = new FlexerState('*', COMMENT_STAR).setDefault(THIS);
+
+    private final FlexerState STRING_END = EMPTY.tail();
+    private final FlexerState STRING_ESCAPE = EMPTY.tail();
+    private final FlexerState STRING = new FlexerState('"', STRING_END, '\\', STRING_ESCAPE).setDefault(THIS);
+
+    {
+        COMMENT_STAR.setDefault(COMMENT);
+        STRING_ESCAPE.setDefault(STRING);
+    }
+
+    private final FlexerState IDENTIFIER_TAIL = new FlexerState("09AZ__az", THIS);
+    private final FlexerState IDENTIFIER_HEAD = IDENTIFIER_TAIL.head();
+
+    private final FlexerState START = new FlexerStateBuilder()
+            .set('(', OPENING_PAREN)
+            .set(')', CLOSING_PAREN)
+            .set('[', OPENING_BRACKET)
+            .set(']', CLOSING_BRACKET)
+            .set('{', OPENING_BRACE)
+            .set('}', CLOSING_BRACE)
+            .set('\n', NEWLINE)
+            .set(' ', SPACE_HEAD)
+            .set('/', new FlexerState('*', COMMENT).head())
+            .set('"', STRING.head())
+            .set("09AZ__az", IDENTIFIER_HEAD)
+            .build()
+            .setDefault(ERROR);
+
+    @Override
+    protected FlexerState start() {
+        return START;
+    }
+
+    static Freditor newFreditor() {
+        return new Freditor(instance, JavaIndenter.instance);
+    }
+}
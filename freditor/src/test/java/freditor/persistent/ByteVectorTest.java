@@ -2,6 +2,10 @@ package freditor.persistent;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import static freditor.Maths.atLeastZero;
@@ -242,6 +246,57 @@ public class ByteVectorTest {
         }
     }
 
+    @Test
+    public void pushAllIsOptimizedPushChain() {
+        final int MAX_SIZE = 1057;
+        byte[] bytes = arrayOfSize(MAX_SIZE);
+        for (int size = 0; size <= MAX_SIZE; size += 7) {
+            ByteVector v = ByteVector.of(bytes, size);
+            for (int length = 0; size + length <= MAX_SIZE; length += 13) {
+                ByteVector p = v;
+                for (int i = 0; i < length; ++i) {
+                    p = p.push(bytes[size + i]);
+                }
+                assertEquals(p, v.pushAll(bytes, size, length));
+            }
+        }
+    }
+
+    @Test
+    public void copyRangeIntoArray() {
+        final int SIZE = 1057;
+        byte[] bytes = arrayOfSize(SIZE);
+        ByteVector v = ByteVector.of(bytes);
+        for (int start = 0; start <= SIZE; start += 31) {
+            for (int end = start; end <= SIZE; end += 37) {
+                byte[] range = new byte[end - start + 2];
+                v.copyIntoArray(start, end, range, 1);
+                for (int i = start; i < end; ++i) {
+                    assertEquals(bytes[i], range[1 + i - start]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leafBuffersCoverRange() {
+        final int SIZE = 1057;
+        byte[] bytes = arrayOfSize(SIZE);
+        ByteVector v = ByteVector.of(bytes);
+        for (int start = 0; start <= SIZE; start += 31) {
+            int i = start;
+            while (i < SIZE) {
+                ByteBuffer leaf = v.leafBuffer(i, SIZE);
+                assertTrue(leaf.isReadOnly());
+                assertTrue(leaf.hasRemaining());
+                while (leaf.hasRemaining()) {
+                    assertEquals(bytes[i++], leaf.get());
+                }
+                assertTrue((i & 31) == 0 || i == SIZE);
+            }
+        }
+    }
+
     private static void hashing(int size) {
         byte[] bytes = arrayOfSize(size);
 
@@ -298,4 +353,236 @@ public class ByteVectorTest {
         hashing(32799);
         hashing(32800);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void unsharedBytesOfPathCopies() {
+        ByteVector v = ByteVector.of(new byte[100_000]);
+        assertEquals(0, v.bytesNotSharedWith(v));
+        assertTrue(v.bytesNotSharedWith(ByteVector.EMPTY) > 100_000);
+
+        ByteVector w = v.pop().push((byte) 1);
+        assertTrue(w.bytesNotSharedWith(v) <= 48);
+
+        ByteVector u = v.take(50_000).pushAll(new byte[32], 0, 32);
+        long unshared = u.bytesNotSharedWith(v);
+        assertTrue(0 < unshared && unshared < 1000);
+    }
+
+    private static int commonPrefixByScanning(ByteVector a, ByteVector b) {
+        final int limit = Math.min(a.size(), b.size());
+        int i = 0;
+        while (i < limit && a.byteAt(i) == b.byteAt(i)) {
+            ++i;
+        }
+        return i;
+    }
+
+    @Test
+    public void commonPrefixOfSharingVersions() {
+        Random random = new Random(13);
+        byte[] bytes = new byte[32 * 32 * 32 + 77];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) ('a' + random.nextInt(4));
+        }
+        ByteVector v = ByteVector.of(bytes);
+        assertEquals(bytes.length, v.commonPrefixLength(v));
+        assertEquals(0, v.commonPrefixLength(ByteVector.EMPTY));
+
+        for (int k = 0; k < 200; ++k) {
+            int n = random.nextInt(bytes.length + 1);
+            ByteVector w = v.take(n);
+            switch (k % 4) {
+                case 0:
+                    w = w.push((byte) (bytes[Math.min(n, bytes.length - 1)] + 1));
+                    break;
+                case 1:
+                    // the same bytes in unshared leaves
+                    w = w.pushAll(bytes, n, Math.min(bytes.length - n, 1000));
+                    break;
+                case 2:
+                    w = ByteVector.of(bytes, n).pushAll(new byte[]{1, 2, 3}, 0, 3);
+                    break;
+                default:
+                    // the same bytes in a taller trie
+                    w = w.pushAll(bytes, n, bytes.length - n).pushAll(new byte[1 << 20], 0, 1 << 20);
+            }
+            assertEquals(commonPrefixByScanning(v, w), v.commonPrefixLength(w), "case " + k % 4 + ", n " + n);
+            assertEquals(commonPrefixByScanning(w, v), w.commonPrefixLength(v), "case " + k % 4 + ", n " + n);
+        }
+    }
+
+    @Test
+    public void indexOfMatchesLinearScan() {
+        Random random = new Random(11);
+        // '\n' ^ 1 right above '\n' would be a false positive of a careless word test
+        byte[] alphabet = {'\n', 0x0b, 'a', ' ', (byte) 0x8a};
+        byte[] bytes = new byte[32 * 32 + 77];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        // popping leaves stale bytes in the tail, which must not be found
+        ByteVector v = ByteVector.of(bytes).pushAll(new byte[]{'\n', '\n', '\n'}, 0, 3).pop().pop().pop();
+        for (byte b : alphabet) {
+            for (int from = 0; from <= bytes.length; ++from) {
+                int expected = -1;
+                for (int i = from; i < bytes.length; ++i) {
+                    if (bytes[i] == b) {
+                        expected = i;
+                        break;
+                    }
+                }
+                assertEquals(expected, v.indexOf(b, from), "from " + from);
+            }
+        }
+        assertEquals(-1, ByteVector.EMPTY.indexOf((byte) ' ', 0));
+    }
+
+    @Test
+    public void cursorReadsInBothDirections() {
+        byte[] bytes = new byte[32 * 32 * 32 + 77];
+        new Random(7).nextBytes(bytes);
+        ByteVector v = ByteVector.of(bytes);
+        ByteVector.Cursor cursor = v.cursor();
+        for (int i = 0; i < bytes.length; ++i) {
+            assertEquals(bytes[i], cursor.byteAt(i));
+        }
+        for (int i = bytes.length - 1; i >= 0; --i) {
+            assertEquals(bytes[i], cursor.byteAt(i));
+        }
+        for (int i = 0; i < bytes.length; i += 1000) {
+            assertEquals(bytes[i], cursor.byteAt(i));
+        }
+    }
+
+    private static void assertVectorOf(byte[] expected, ByteVector v) {
+        assertEquals(expected.length, v.size());
+        assertArrayEquals(expected, v.toArray());
+        ByteVector.Cursor cursor = v.cursor();
+        for (int i = expected.length - 1; i >= 0; i -= 7) {
+            assertEquals(expected[i], v.byteAt(i));
+            assertEquals(expected[i], cursor.byteAt(i));
+        }
+        int start = expected.length / 3;
+        int end = expected.length - start / 2;
+        byte[] range = new byte[end - start];
+        v.copyIntoArray(start, end, range, 0);
+        assertArrayEquals(Arrays.copyOfRange(expected, start, end), range);
+        for (int i = start; i < end; ) {
+            ByteBuffer leaf = v.leafBuffer(i, end);
+            assertTrue(leaf.hasRemaining());
+            while (leaf.hasRemaining()) {
+                assertEquals(expected[i++], leaf.get());
+            }
+        }
+        int expectedIndex = -1;
+        for (int i = start; i < expected.length; ++i) {
+            if (expected[i] == 'z') {
+                expectedIndex = i;
+                break;
+            }
+        }
+        assertEquals(expectedIndex, v.indexOf((byte) 'z', start));
+        ByteVector regular = ByteVector.of(expected);
+        assertEquals(regular, v);
+        assertEquals(v, regular);
+        assertEquals(regular.hashCode(), v.hashCode());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test
+    public void concatAndSliceLikeArrays() {
+        Random random = new Random(17);
+        List<byte[]> arrays = new ArrayList<>();
+        List<ByteVector> vectors = new ArrayList<>();
+        for (int size : new int[]{0, 1, 31, 32, 33, 100, 1057, 32 * 32 + 32, 40_000}) {
+            byte[] bytes = new byte[size];
+            for (int i = 0; i < size; ++i) {
+                bytes[i] = (byte) ('a' + random.nextInt(26));
+            }
+            arrays.add(bytes);
+            vectors.add(ByteVector.of(bytes));
+        }
+        for (int k = 0; k < 2000; ++k) {
+            int x = random.nextInt(arrays.size());
+            int y = random.nextInt(arrays.size());
+            byte[] a = arrays.get(x);
+            ByteVector v = vectors.get(x);
+            int from = random.nextInt(a.length + 1);
+            int to = from + random.nextInt(a.length - from + 1);
+            byte[] expected;
+            ByteVector actual;
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    expected = concat(a, arrays.get(y));
+                    actual = v.concat(vectors.get(y));
+                    break;
+                case 2:
+                    expected = Arrays.copyOfRange(a, from, to);
+                    actual = v.slice(from, to);
+                    break;
+                case 3:
+                    expected = Arrays.copyOfRange(a, from, a.length);
+                    actual = v.drop(from);
+                    break;
+                case 4:
+                    expected = Arrays.copyOf(a, to);
+                    actual = v.take(to);
+                    if (to > 0 && random.nextBoolean()) {
+                        expected = Arrays.copyOf(a, to - 1);
+                        actual = actual.pop();
+                    }
+                    break;
+                default:
+                    byte[] pushed = new byte[random.nextInt(100)];
+                    Arrays.fill(pushed, (byte) 'z');
+                    expected = concat(a, pushed);
+                    actual = random.nextBoolean() ? v.pushAll(pushed, 0, pushed.length) : v;
+                    if (actual == v) {
+                        for (byte b : pushed) {
+                            actual = actual.push(b);
+                        }
+                    }
+            }
+            assertVectorOf(expected, actual);
+            ByteVector other = vectors.get(y);
+            assertEquals(commonPrefixByScanning(actual, other), actual.commonPrefixLength(other));
+            assertTrue(actual.bytesNotSharedWith(other) >= 0);
+            if (expected.length < 200_000) {
+                arrays.add(expected);
+                vectors.add(actual);
+            }
+        }
+    }
+
+    @Test
+    public void concatAndSliceShareAllButTheSeams() {
+        byte[] bytes = new byte[1_000_000];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        ByteVector v = ByteVector.of(bytes);
+        // exchanging two blocks again and again, like moving lines up and down
+        ByteVector w = v;
+        for (int k = 0; k < 1000; ++k) {
+            int a = (k * 7919) % 900_000;
+            int b = a + 1 + k % 5000;
+            int c = b + 1 + k % 77;
+            int d = c + 1 + k % 3000;
+            ByteVector moved = w.take(a).concat(w.slice(c, d)).concat(w.slice(b, c)).concat(w.slice(a, b)).concat(w.drop(d));
+            assertEquals(w.size(), moved.size());
+            assertTrue(moved.bytesNotSharedWith(w) < 40_000, "unshared " + moved.bytesNotSharedWith(w));
+            w = moved;
+        }
+        byte[] expected = w.toArray();
+        Arrays.sort(expected);
+        byte[] sorted = bytes.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(sorted, expected);
+    }
+}
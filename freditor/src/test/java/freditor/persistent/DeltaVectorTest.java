@@ -0,0 +1,127 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaVectorTest {
+    private static byte[] randomDeltas(int size, Random random) {
+        byte[] deltas = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            deltas[i] = (byte) (random.nextInt(3) - 1);
+        }
+        return deltas;
+    }
+
+    private static int prefixSum(byte[] deltas, int n) {
+        int sum = 0;
+        for (int i = 0; i < n; ++i) {
+            sum += deltas[i];
+        }
+        return sum;
+    }
+
+    private static void assertContents(byte[] expected, int size, DeltaVector actual) {
+        assertEquals(size, actual.size());
+        for (int i = 0; i < size; ++i) {
+            assertEquals(expected[i], actual.get(i));
+        }
+        for (int n = 0; n <= size; n += 13) {
+            assertEquals(prefixSum(expected, n), actual.prefixSum(n));
+        }
+        assertEquals(prefixSum(expected, size), actual.prefixSum(size));
+    }
+
+    @Test
+    public void emptyVector() {
+        assertTrue(DeltaVector.EMPTY.isEmpty());
+        assertEquals(0, DeltaVector.EMPTY.size());
+        assertEquals(0, DeltaVector.EMPTY.prefixSum(0));
+        assertEquals(-1, DeltaVector.EMPTY.firstPrefixBelow(0, 0, 0));
+        assertEquals(0, DeltaVector.EMPTY.lastPrefixBelow(0, 0, 1));
+    }
+
+    @Test
+    public void ofEqualsPushChain() {
+        Random random = new Random(42);
+        for (int size : new int[]{0, 1, 32, 33, 32 * 32, 32 * 32 + 33, 32 * 32 * 32 + 33}) {
+            byte[] deltas = randomDeltas(size, random);
+            DeltaVector v = DeltaVector.EMPTY;
+            for (byte delta : deltas) {
+                v = v.push(delta);
+            }
+            assertContents(deltas, size, v);
+            assertContents(deltas, size, DeltaVector.of(deltas));
+        }
+    }
+
+    @Test
+    public void popAndTake() {
+        byte[] deltas = randomDeltas(1056, new Random(7));
+        DeltaVector v = DeltaVector.of(deltas);
+        DeltaVector p = v;
+        for (int size = v.size(); size > 0; size -= 3) {
+            assertContents(deltas, size, p);
+            assertContents(deltas, size, v.take(size));
+            p = p.pop().pop().pop();
+        }
+    }
+
+    @Test
+    public void setCopiesPath() {
+        byte[] deltas = randomDeltas(32 * 32 + 40, new Random(11));
+        DeltaVector v = DeltaVector.of(deltas);
+        for (int i = 0; i < deltas.length; i += 17) {
+            DeltaVector w = v.set(i, (byte) 1);
+            byte old = deltas[i];
+            deltas[i] = 1;
+            assertContents(deltas, deltas.length, w);
+            deltas[i] = old;
+        }
+        assertContents(deltas, deltas.length, v);
+    }
+
+    @Test
+    public void searchesAgreeWithLinearScans() {
+        Random random = new Random(3);
+        byte[] deltas = randomDeltas(5000, random);
+        DeltaVector v = DeltaVector.of(deltas);
+        int[] prefix = new int[deltas.length + 1];
+        for (int i = 0; i < deltas.length; ++i) {
+            prefix[i + 1] = prefix[i] + deltas[i];
+        }
+        for (int trial = 0; trial < 2000; ++trial) {
+            int from = random.nextInt(prefix.length);
+            int to = from + random.nextInt(prefix.length - from);
+            int threshold = prefix[random.nextInt(prefix.length)] + random.nextInt(5) - 2;
+
+            int firstBelow = -1, firstAbove = -1, lastBelow = -1, lastAbove = -1;
+            for (int n = from; n <= to; ++n) {
+                if (prefix[n] < threshold) {
+                    if (firstBelow < 0) firstBelow = n;
+                    lastBelow = n;
+                }
+                if (prefix[n] > threshold) {
+                    if (firstAbove < 0) firstAbove = n;
+                    lastAbove = n;
+                }
+            }
+            assertEquals(firstBelow, v.firstPrefixBelow(from, to, threshold));
+            assertEquals(firstAbove, v.firstPrefixAbove(from, to, threshold));
+            assertEquals(lastBelow, v.lastPrefixBelow(from, to, threshold));
+            assertEquals(lastAbove, v.lastPrefixAbove(from, to, threshold));
+        }
+    }
+
+    @Test
+    public void unsharedBytesOfPathCopies() {
+        DeltaVector v = DeltaVector.of(randomDeltas(100_000, new Random(5)));
+        assertEquals(0, v.bytesNotSharedWith(v));
+        assertTrue(v.bytesNotSharedWith(DeltaVector.EMPTY) > 100_000);
+
+        long unshared = v.set(50_000, (byte) (v.get(50_000) + 1)).bytesNotSharedWith(v);
+        assertTrue(0 < unshared && unshared < 1000);
+    }
+}
@@ -0,0 +1,147 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import static freditor.Maths.atLeastZero;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IntVectorTest {
+    @Test
+    public void emptyVector() {
+        assertTrue(IntVector.EMPTY.isEmpty());
+        assertEquals(0, IntVector.EMPTY.size());
+        assertArrayEquals(new int[0], IntVector.EMPTY.toArray());
+    }
+
+    @Test
+    public void twoValues() {
+        IntVector v = IntVector.EMPTY.push(0).push(13);
+        assertEquals(2, v.size());
+        assertEquals(0, v.get(0));
+        assertEquals(13, v.get(1));
+        assertEquals(13, v.top());
+    }
+
+    private static int[] ascendingArrayOfSize(int size) {
+        int[] values = new int[size];
+        for (int i = 0; i < size; ++i) {
+            values[i] = 3 * i;
+        }
+        return values;
+    }
+
+    private static void testVectorOfLength(int size) {
+        int[] values = ascendingArrayOfSize(size);
+        IntVector v = IntVector.of(values);
+        assertEquals(size, v.size());
+        assertArrayEquals(values, v.toArray());
+
+        IntVector p = IntVector.EMPTY;
+        for (int value : values) {
+            p = p.push(value);
+        }
+        assertEquals(v, p);
+        assertEquals(v.hashCode(), p.hashCode());
+    }
+
+    @Test
+    public void lengths() {
+        testVectorOfLength(32);
+        testVectorOfLength(33);
+        testVectorOfLength(32 * 32 + 32);
+        testVectorOfLength(32 * 32 + 33);
+        testVectorOfLength(32 * 32 * 32 + 32);
+        testVectorOfLength(32 * 32 * 32 + 33);
+    }
+
+    private static void checkLast32(int[] values, IntVector v) {
+        final int size = v.size();
+        for (int i = atLeastZero(size - 32); i < size; ++i) {
+            assertEquals(values[i], v.get(i));
+        }
+    }
+
+    private static void exercisePopAndPush(int size) {
+        final int max = size + 48;
+        final int min = size - 48;
+        int[] values = ascendingArrayOfSize(max);
+
+        IntVector v = IntVector.of(values);
+        while (v.size() >= min) {
+            checkLast32(values, v);
+            v = v.pop();
+        }
+        while (v.size() < max) {
+            v = v.push(values[v.size()]);
+            checkLast32(values, v);
+        }
+    }
+
+    @Test
+    public void exercise() {
+        exercisePopAndPush(32 + 32);
+        exercisePopAndPush(32 * 32 + 32);
+        exercisePopAndPush(32 * 32 * 32 + 32);
+    }
+
+    @Test
+    public void pushDoesNotAffectOriginal() {
+        IntVector v = IntVector.of(0, 1, 2);
+        IntVector w = v.pop().push(0);
+        assertArrayEquals(new int[]{0, 1, 2}, v.toArray());
+        assertArrayEquals(new int[]{0, 1, 0}, w.toArray());
+    }
+
+    @Test
+    public void takeIsOptimizedPopChain() {
+        int[] values = ascendingArrayOfSize(1057);
+        IntVector v = IntVector.of(values);
+        IntVector p = v;
+        for (int targetSize = v.size(); targetSize >= 0; --targetSize) {
+            assertEquals(p, v.take(targetSize));
+            if (targetSize > 0) {
+                p = p.pop();
+            }
+        }
+    }
+
+    @Test
+    public void setCopiesPath() {
+        int[] values = ascendingArrayOfSize(32 * 32 + 40);
+        IntVector v = IntVector.of(values);
+        for (int i = 0; i < values.length; i += 17) {
+            IntVector w = v.set(i, -1);
+            assertEquals(-1, w.get(i));
+            assertEquals(values[i], v.get(i));
+            if (i > 0) {
+                assertEquals(values[i - 1], w.get(i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void binarySearch() {
+        IntVector v = IntVector.of(ascendingArrayOfSize(1057));
+        for (int key = -1; key <= 3 * 1057; ++key) {
+            int expected = (key + 2) / 3;
+            assertEquals(expected, v.binarySearch(key), "key " + key);
+        }
+    }
+
+    @Test
+    public void pushAllAndCopyIntoArray() {
+        int[] values = ascendingArrayOfSize(32 * 32 + 77);
+        for (int prefix = 0; prefix < 70; prefix += 23) {
+            int[] start = new int[prefix];
+            System.arraycopy(values, 0, start, 0, prefix);
+            IntVector v = IntVector.of(start).pushAll(values, prefix, values.length - prefix);
+            assertArrayEquals(values, v.toArray());
+
+            int[] copy = new int[values.length - 5];
+            v.copyIntoArray(5, values.length, copy, 0);
+            for (int i = 5; i < values.length; ++i) {
+                assertEquals(values[i], copy[i - 5]);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReversalTest {
+    private static final int[] STARTS = {0, 1, 31, 32, 33, 500, 1023, 1024, 1100};
+
+    @Test
+    public void bytesAcrossLeaves() {
+        byte[] bytes = new byte[1100];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        ByteVector src = ByteVector.of(bytes);
+        ByteVector dst = ByteVector.of((byte) '<', (byte) '>');
+        for (int start : STARTS) {
+            ByteVector result = Reversal.pushReversed(dst, src, start);
+            assertEquals(2 + bytes.length - start, result.size());
+            for (int i = start; i < bytes.length; ++i) {
+                assertEquals(bytes[i], result.byteAt(2 + bytes.length - 1 - i));
+            }
+        }
+    }
+
+    @Test
+    public void shortsAcrossLeaves() {
+        short[] values = new short[1100];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = (short) (i * 7);
+        }
+        ShortVector src = ShortVector.of(values);
+        for (int start : STARTS) {
+            ShortVector result = Reversal.pushReversed(ShortVector.of((short) -1), src, start);
+            assertEquals(1 + values.length - start, result.size());
+            assertEquals(-1, result.get(0));
+            for (int i = start; i < values.length; ++i) {
+                assertEquals(values[i], result.get(values.length - i));
+            }
+        }
+    }
+
+    @Test
+    public void intsAcrossLeavesMirrored() {
+        int[] values = new int[1100];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i * 3;
+        }
+        IntVector src = IntVector.of(values);
+        for (int start : STARTS) {
+            IntVector reversed = Reversal.pushReversed(IntVector.EMPTY, src, start, -1);
+            IntVector mirrored = Reversal.pushReversed(IntVector.EMPTY, src, start, 5000);
+            for (int i = start; i < values.length; ++i) {
+                assertEquals(values[i], reversed.get(values.length - 1 - i));
+                assertEquals(5000 - values[i], mirrored.get(values.length - 1 - i));
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The trie is shared with IntVector and exercised by IntVectorTest;
+// these tests only cover the 16-bit leaves, which hold ids up to 0xffff.
+public class ShortVectorTest {
+    private static short[] idsOfSize(int size) {
+        short[] ids = new short[size];
+        for (int i = 0; i < size; ++i) {
+            ids[i] = (short) (i * 4099);
+        }
+        return ids;
+    }
+
+    private static short[] contentsOf(ShortVector v) {
+        short[] values = new short[v.size()];
+        v.copyIntoArray(0, v.size(), values, 0);
+        return values;
+    }
+
+    @Test
+    public void ofPushAndPushAllAgree() {
+        short[] ids = idsOfSize(32 * 32 + 77);
+        ShortVector pushed = ShortVector.EMPTY;
+        for (short id : ids) {
+            pushed = pushed.push(id);
+        }
+        assertArrayEquals(ids, contentsOf(ShortVector.of(ids)));
+        assertArrayEquals(ids, contentsOf(pushed));
+        assertArrayEquals(ids, contentsOf(ShortVector.EMPTY.pushAll(ids, 0, 40).pushAll(ids, 40, ids.length - 40)));
+        assertEquals(ids[ids.length - 1], pushed.top());
+    }
+
+    @Test
+    public void idsAboveShortMaxValue() {
+        ShortVector v = ShortVector.of(idsOfSize(100));
+        ShortVector w = v.set(50, (short) 0xffff).push((short) 0x8000);
+        assertEquals(0xffff, w.get(50) & 0xffff);
+        assertEquals(0x8000, w.top() & 0xffff);
+        assertEquals((short) (50 * 4099), v.get(50));
+        assertEquals(100, v.size());
+    }
+}
@@ -0,0 +1,105 @@
+package freditor.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransientByteVectorTest {
+    private static byte[] arrayOfSize(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            bytes[i] = (byte) ('A' + i % 26);
+        }
+        return bytes;
+    }
+
+    private static void pushLikePersistent(int prefix, int length) {
+        byte[] bytes = arrayOfSize(prefix + length);
+        ByteVector original = ByteVector.of(bytes, prefix);
+
+        ByteVector expected = original;
+        TransientByteVector actual = original.asTransient();
+        for (int i = prefix; i < prefix + length; ++i) {
+            expected = expected.push(bytes[i]);
+            actual.push(bytes[i]);
+        }
+        assertEquals(expected, actual.persistent());
+        assertEquals(ByteVector.of(bytes, prefix), original);
+    }
+
+    @Test
+    public void pushLevel1() {
+        pushLikePersistent(0, 32);
+        pushLikePersistent(5, 27);
+    }
+
+    @Test
+    public void pushLevel2() {
+        pushLikePersistent(0, 32 * 32 + 33);
+        pushLikePersistent(31, 32 * 32);
+        pushLikePersistent(33, 32 * 32);
+    }
+
+    @Test
+    public void pushLevel3() {
+        pushLikePersistent(0, 32 * 32 * 32 + 33);
+        pushLikePersistent(32 * 32 + 31, 32 * 32 * 32);
+        pushLikePersistent(32 * 32 + 32, 32 * 32 * 32);
+        pushLikePersistent(32 * 32 + 33, 32 * 32 * 32);
+    }
+
+    @Test
+    public void pushLevel4() {
+        pushLikePersistent(32 * 32 * 32 - 1, 32 * 32 * 32 + 99);
+    }
+
+    @Test
+    public void pushAllInRuns() {
+        final int SIZE = 32 * 32 * 32 + 77;
+        byte[] bytes = arrayOfSize(SIZE);
+        for (int run = 1; run <= 97; run += 16) {
+            TransientByteVector v = ByteVector.EMPTY.asTransient();
+            for (int i = 0; i < SIZE; i += run) {
+                v.pushAll(bytes, i, Math.min(run, SIZE - i));
+            }
+            assertEquals(SIZE, v.size());
+            assertArrayEquals(bytes, v.persistent().toArray());
+        }
+    }
+
+    @Test
+    public void branchesStayIndependent() {
+        byte[] bytes = arrayOfSize(32 * 32 + 64);
+        ByteVector base = ByteVector.of(bytes, 32 * 32 + 1);
+        ByteVector w = base.asTransient().push((byte) 11).pushAll(bytes, 0, 40).persistent();
+        ByteVector x = base.asTransient().push((byte) 13).pushAll(bytes, 0, 40).persistent();
+        assertEquals(11, w.byteAt(32 * 32 + 1));
+        assertEquals(13, x.byteAt(32 * 32 + 1));
+        assertEquals(ByteVector.of(bytes, 32 * 32 + 1), base);
+    }
+
+    @Test
+    public void pushOntoSlicesAndConcatenations() {
+        byte[] bytes = arrayOfSize(32 * 32 * 3 + 55);
+        ByteVector v = ByteVector.of(bytes);
+        for (int cut = 1; cut < bytes.length; cut += 97) {
+            ByteVector relaxed = v.drop(cut).concat(v.slice(0, cut));
+            TransientByteVector t = relaxed.asTransient();
+            t.pushAll(bytes, 0, 1000).push((byte) 11);
+            assertEquals(bytes.length + 1001, t.size());
+            byte[] expected = new byte[bytes.length + 1001];
+            System.arraycopy(bytes, cut, expected, 0, bytes.length - cut);
+            System.arraycopy(bytes, 0, expected, bytes.length - cut, cut);
+            System.arraycopy(bytes, 0, expected, bytes.length, 1000);
+            expected[bytes.length + 1000] = 11;
+            assertArrayEquals(expected, t.persistent().toArray());
+        }
+    }
+
+    @Test
+    public void unusableAfterPersistent() {
+        TransientByteVector v = ByteVector.EMPTY.asTransient().push((byte) 11);
+        v.persistent();
+        assertThrows(IllegalStateException.class, () -> v.push((byte) 13));
+    }
+}
@@ -114,7 +114,7 @@ open class MainFlow : MainDesign(AtomicReference(Problem.karelsFirstProgram.crea
     }
 
     fun processProgram(how: (KarelSemantics) -> Unit) {
-        editor.autosaver.save()
+        editor.autosaver.saveInBackground()
         try {
             val lexer = Lexer(editor.text)
             val parser = Parser(lexer)